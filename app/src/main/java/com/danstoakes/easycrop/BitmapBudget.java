@@ -0,0 +1,281 @@
+package com.danstoakes.easycrop;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide record of the bitmaps held by the application, grouped by their owner. When the
+ * bitmaps add up to more than the budget, which is a share of the memory class of the device, the
+ * owners which were used least recently are asked to release theirs. Bitmaps which cannot be
+ * released on request, e.g., a crop which is being displayed, are pinned: they count towards the
+ * budget but are never evicted. Pooled bitmaps are not counted, as the pool has its own limit.
+ */
+public class BitmapBudget
+{
+    // the share of the memory class which bitmaps may take up
+    private static final int BUDGET_DIVISOR = 3;
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private static BitmapBudget instance;
+
+    private final long budgetBytes;
+    // owners in order of use, least recent first
+    private final LinkedHashMap<Evictable, List<Bitmap>> owners = new LinkedHashMap<>(4, 0.75f, true);
+    private final IdentityHashMap<Bitmap, Integer> sizes = new IdentityHashMap<>();
+    private long currentBytes;
+    private long peakBytes;
+    private int evictionCount;
+
+    /**
+     * Interface for the owners of tracked bitmaps, which must let go of them when asked. The owner
+     * is told on the thread which tracked the bitmap that went over the budget, outside of the
+     * budget's lock.
+     */
+    public interface Evictable
+    {
+        void onEvicted ();
+    }
+
+    /**
+     * Returns the budget for the process, creating it from the memory class of the device when it
+     * is first needed.
+     * @param context - any context of the application.
+     * @return BitmapBudget - the budget for the process.
+     */
+    public static synchronized BitmapBudget getInstance (Context context)
+    {
+        if (instance == null)
+        {
+            ActivityManager activityManager = (ActivityManager) context.getApplicationContext()
+                    .getSystemService(Context.ACTIVITY_SERVICE);
+            instance = new BitmapBudget(activityManager.getMemoryClass() * BYTES_PER_MEGABYTE / BUDGET_DIVISOR);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor for the BitmapBudget class.
+     * @param budgetBytes - the number of bytes the tracked bitmaps may take up.
+     */
+    BitmapBudget (long budgetBytes)
+    {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Records a bitmap against its owner, then releases the bitmaps of other owners, least recently
+     * used first, until the total is within the budget. The owner itself is never evicted.
+     * @param owner - the owner of the bitmap.
+     * @param bitmap - the bitmap to record.
+     */
+    public void track (Evictable owner, Bitmap bitmap)
+    {
+        List<Evictable> evicted;
+        synchronized (this)
+        {
+            List<Bitmap> bitmaps = owners.get(owner);
+            if (bitmaps == null)
+            {
+                bitmaps = new ArrayList<>();
+                owners.put(owner, bitmaps);
+            }
+            if (!add(bitmap))
+                return;
+            bitmaps.add(bitmap);
+            evicted = trim(owner);
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Records a bitmap which cannot be released on request, then releases the bitmaps of the
+     * owners, least recently used first, until the total is within the budget. The most recently
+     * used owner is never evicted, as it is the one in use.
+     * @param bitmap - the bitmap to record.
+     */
+    public void pin (Bitmap bitmap)
+    {
+        List<Evictable> evicted;
+        synchronized (this)
+        {
+            if (!add(bitmap))
+                return;
+            // the owners are in order of use, so the one in use is the last
+            Evictable keep = null;
+            for (Evictable owner : owners.keySet())
+                keep = owner;
+            evicted = trim(keep);
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Forgets a pinned bitmap which is no longer held.
+     * @param bitmap - the bitmap to forget, which may be null.
+     */
+    public synchronized void unpin (Bitmap bitmap)
+    {
+        Integer bytes = bitmap != null ? sizes.remove(bitmap) : null;
+        if (bytes != null)
+            currentBytes -= bytes;
+    }
+
+    /**
+     * Adds the bytes of a bitmap to the total, unless it is already recorded.
+     * @param bitmap - the bitmap to add.
+     * @return boolean - whether the bitmap was added.
+     */
+    private boolean add (Bitmap bitmap)
+    {
+        if (sizes.containsKey(bitmap))
+            return false;
+        int bytes = bitmap.getAllocationByteCount();
+        sizes.put(bitmap, bytes);
+        currentBytes += bytes;
+        peakBytes = Math.max(peakBytes, currentBytes);
+        return true;
+    }
+
+    /**
+     * Forgets a bitmap which its owner no longer holds.
+     * @param owner - the owner of the bitmap.
+     * @param bitmap - the bitmap to forget.
+     */
+    public synchronized void untrack (Evictable owner, Bitmap bitmap)
+    {
+        List<Bitmap> bitmaps = owners.get(owner);
+        Integer bytes = sizes.remove(bitmap);
+        if (bitmaps != null && bytes != null)
+        {
+            bitmaps.remove(bitmap);
+            currentBytes -= bytes;
+        }
+    }
+
+    /**
+     * Marks an owner as the most recently used, so that it is the last to be evicted.
+     * @param owner - the owner which is in use.
+     */
+    public synchronized void touch (Evictable owner)
+    {
+        // getting the entry is what moves it to the end of the order
+        if (owners.get(owner) == null)
+            owners.put(owner, new ArrayList<Bitmap>());
+    }
+
+    /**
+     * Forgets an owner and all of its bitmaps, without asking it to release them.
+     * @param owner - the owner to forget.
+     */
+    public synchronized void release (Evictable owner)
+    {
+        List<Bitmap> bitmaps = owners.remove(owner);
+        if (bitmaps != null)
+            forget(bitmaps);
+    }
+
+    /**
+     * Forgets the least recently used owners until the tracked bitmaps are within the budget. The
+     * owners are only told once the lock has been released, as they may call back into the budget.
+     * @param keep - the owner which must not be evicted, which may be null.
+     * @return List - the owners which have to release their bitmaps.
+     */
+    private List<Evictable> trim (Evictable keep)
+    {
+        List<Evictable> evicted = new ArrayList<>();
+        Iterator<Map.Entry<Evictable, List<Bitmap>>> iterator = owners.entrySet().iterator();
+        while (currentBytes > budgetBytes && iterator.hasNext())
+        {
+            Map.Entry<Evictable, List<Bitmap>> entry = iterator.next();
+            if (entry.getKey() == keep)
+                continue;
+            // forget the bitmaps before the owner releases them, so that it does not untrack them
+            iterator.remove();
+            forget(entry.getValue());
+            evicted.add(entry.getKey());
+            evictionCount++;
+            Log.d("APP_MEMORY", "Evicted bitmaps to stay within budget: " + this);
+        }
+        return evicted;
+    }
+
+    /**
+     * Asks evicted owners to release their bitmaps.
+     * @param evicted - the owners which have been evicted.
+     */
+    private static void notifyEvicted (List<Evictable> evicted)
+    {
+        for (Evictable owner : evicted)
+            owner.onEvicted();
+    }
+
+    /**
+     * Removes the bytes of a list of bitmaps from the total.
+     * @param bitmaps - the bitmaps to forget.
+     */
+    private void forget (List<Bitmap> bitmaps)
+    {
+        for (Bitmap bitmap : bitmaps)
+        {
+            Integer bytes = sizes.remove(bitmap);
+            if (bytes != null)
+                currentBytes -= bytes;
+        }
+    }
+
+    /**
+     * Returns the number of bytes the tracked bitmaps may take up.
+     * @return long - the budget in bytes.
+     */
+    public long getBudgetBytes ()
+    {
+        return budgetBytes;
+    }
+
+    /**
+     * Returns the number of bytes taken up by the tracked bitmaps.
+     * @return long - the current total in bytes.
+     */
+    public synchronized long getCurrentBytes ()
+    {
+        return currentBytes;
+    }
+
+    /**
+     * Returns the largest number of bytes the tracked bitmaps have taken up at once.
+     * @return long - the peak total in bytes.
+     */
+    public synchronized long getPeakBytes ()
+    {
+        return peakBytes;
+    }
+
+    /**
+     * Returns the number of owners which have been evicted.
+     * @return int - the number of evictions.
+     */
+    public synchronized int getEvictionCount ()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Returns a summary of the budget, for logging.
+     * @return String - the current, peak and budgeted bytes.
+     */
+    @Override
+    public synchronized String toString ()
+    {
+        return "current " + currentBytes / 1024 + "KB, peak " + peakBytes / 1024 + "KB, budget "
+                + budgetBytes / 1024 + "KB, " + owners.size() + " owners, " + evictionCount + " evictions";
+    }
+}
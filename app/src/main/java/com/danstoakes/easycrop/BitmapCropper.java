@@ -0,0 +1,133 @@
+package com.danstoakes.easycrop;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class which decodes crops at full resolution on a background executor. Decoding the source tile
+ * by tile and masking freehand crops can take seconds for the largest images, so it is kept off
+ * the UI thread and the crop is delivered through a listener.
+ */
+public class BitmapCropper
+{
+    private static final int QUEUE_CAPACITY = 1;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY));
+
+    static
+    {
+        // let the crop thread finish when no images are being cropped
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private Future<?> future;
+
+    /**
+     * Starts decoding a crop in the background. The mapper holds its own copy of the rotations and
+     * flips, so the image may be transformed while the crop is decoded. The listener is always
+     * called on the UI thread, and is not called at all once the crop is cancelled.
+     * @param bitmapHandler - the handler holding the source of the image.
+     * @param mapper - the mapper from display coordinates to source coordinates.
+     * @param bounds - the area to decode, in display coordinates.
+     * @param mask - the polygon outlining the pixels to keep in display coordinates as x, y pairs, or null to keep them all.
+     * @param maskVertexCount - the number of vertices of the polygon.
+     * @param listener - the listener which receives the crop.
+     */
+    public void crop (final BitmapHandler bitmapHandler, final CropMapper mapper, final RectF bounds,
+                      final float[] mask, final int maskVertexCount, final BitmapCropListener listener)
+    {
+        try
+        {
+            future = EXECUTOR.submit(new Runnable()
+            {
+                /**
+                 * Decodes the crop, then delivers it.
+                 */
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        deliverCrop(bitmapHandler.decodeCrop(mapper, bounds, mask, maskVertexCount), listener);
+                    } catch (IllegalStateException e)
+                    {
+                        // the source was released while it was being decoded
+                        Log.w("APP_ERROR", "The source image was released during the crop: " + e.getMessage());
+                        deliverCrop(null, listener);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e)
+        {
+            Log.w("APP_ERROR", "Too many images are being cropped at once.");
+            deliverCrop(null, listener);
+        }
+    }
+
+    /**
+     * Cancels the crop, interrupting it if it is running and discarding its result.
+     */
+    public void cancel ()
+    {
+        cancelled.set(true);
+        if (future != null)
+            future.cancel(true);
+    }
+
+    /**
+     * Returns whether the crop has been cancelled.
+     * @return boolean - whether the crop has been cancelled.
+     */
+    public boolean isCancelled ()
+    {
+        return cancelled.get();
+    }
+
+    /**
+     * Posts the crop to the listener on the UI thread.
+     * @param croppedBitmap - the crop, or null if it was empty or could not be decoded.
+     * @param listener - the listener which receives the crop.
+     */
+    private void deliverCrop (final Bitmap croppedBitmap, final BitmapCropListener listener)
+    {
+        mainHandler.post(new Runnable()
+        {
+            /**
+             * Hands the crop to the listener if the crop is still active.
+             */
+            @Override
+            public void run()
+            {
+                if (!isCancelled())
+                {
+                    listener.onBitmapCropped(croppedBitmap);
+                } else
+                {
+                    // the activity has gone, so the crop is no longer needed
+                    BitmapPool.getInstance().put(croppedBitmap);
+                }
+            }
+        });
+    }
+
+    /**
+     * Interface which handles the callback once the crop has been decoded.
+     */
+    public interface BitmapCropListener
+    {
+        void onBitmapCropped (Bitmap croppedBitmap);
+    }
+}
@@ -0,0 +1,208 @@
+package com.danstoakes.easycrop;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Helper class which decodes images at the resolution they are displayed at, rather than at full size.
+ */
+public class BitmapDecoder
+{
+    /**
+     * Reads the dimensions of an image without decoding any of its pixels.
+     * @param contentResolver - the resolver used to open the image.
+     * @param uri - the uri of the image.
+     * @return BitmapFactory.Options - the options holding the width, height, and mime type of the image.
+     * @throws IOException - if the image could not be opened.
+     */
+    public static BitmapFactory.Options readBounds (ContentResolver contentResolver, Uri uri) throws IOException
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        // only the header of the image is read when decoding bounds
+        InputStream inputStream = openStream(contentResolver, uri);
+        try
+        {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        } finally
+        {
+            inputStream.close();
+        }
+        return options;
+    }
+
+    /**
+     * Returns the largest power-of-two sample size which still decodes the image at
+     * (or above) the size it is displayed at within the requested bounds.
+     * @param width - the width of the image.
+     * @param height - the height of the image.
+     * @param reqWidth - the width the image has to fit within.
+     * @param reqHeight - the height the image has to fit within.
+     * @return int - the sample size to decode with.
+     */
+    public static int calculateInSampleSize (int width, int height, int reqWidth, int reqHeight)
+    {
+        int inSampleSize = 1;
+        if (width <= 0 || height <= 0 || reqWidth <= 0 || reqHeight <= 0)
+            return inSampleSize;
+        // the ratio the image is scaled by to fit within the requested bounds
+        float ratio = Math.min((float) reqWidth / width, (float) reqHeight / height);
+        // keep halving while the decoded image would still be larger than the displayed image
+        while ((inSampleSize * 2) * ratio <= 1)
+            inSampleSize *= 2;
+        return inSampleSize;
+    }
+
+    /**
+     * Returns the orientation of an image in degrees, as stored by the MediaStore.
+     * @param contentResolver - the resolver used to query the image.
+     * @param uri - the uri of the image.
+     * @return int - the clockwise rotation in degrees needed to display the image upright.
+     */
+    public static int getOrientation (ContentResolver contentResolver, Uri uri)
+    {
+        int orientation = 0;
+        // initialise a cursor object with the desired flag
+        Cursor cursor = contentResolver.query(uri, new String[] {MediaStore.Images.ImageColumns.ORIENTATION},
+                null, null, null);
+        if (cursor != null)
+        {
+            // the orientation is only known if exactly one row is returned
+            if (cursor.getCount() == 1)
+            {
+                cursor.moveToFirst();
+                orientation = cursor.getInt(0);
+            }
+            cursor.close();
+        }
+        return orientation;
+    }
+
+    /**
+     * Decodes an image subsampled to fit within the requested bounds and rotated to its orientation.
+     * The full resolution image is never held in memory.
+     * @param contentResolver - the resolver used to open the image.
+     * @param uri - the uri of the image.
+     * @param reqWidth - the width the image has to fit within.
+     * @param reqHeight - the height the image has to fit within.
+     * @return Bitmap - the decoded bitmap, or null if the image could not be decoded.
+     * @throws IOException - if the image could not be opened.
+     */
+    public static Bitmap decodeSampledBitmap (ContentResolver contentResolver, Uri uri, int reqWidth, int reqHeight)
+            throws IOException
+    {
+        int orientation = getOrientation(contentResolver, uri);
+        // read the dimensions first so that the sample size can be calculated
+        BitmapFactory.Options options = readBounds(contentResolver, uri);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        // the displayed width and height are swapped if the image is on its side
+        if (orientation == 90 || orientation == 270)
+        {
+            width = options.outHeight;
+            height = options.outWidth;
+        }
+        options.inSampleSize = calculateInSampleSize(width, height, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        // decode into a pooled bitmap of the sampled size if there is one, and otherwise into a
+        // mutable bitmap which can be pooled once it is no longer needed
+        options.inMutable = true;
+        options.inBitmap = BitmapPool.getInstance().getReusable(
+                divideRoundingUp(options.outWidth, options.inSampleSize),
+                divideRoundingUp(options.outHeight, options.inSampleSize), Bitmap.Config.ARGB_8888);
+        Bitmap bitmap;
+        try
+        {
+            bitmap = decodeStream(contentResolver, uri, options);
+        } catch (IllegalArgumentException e)
+        {
+            // the decoder could not reuse the pooled bitmap, so let it allocate its own
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decodeStream(contentResolver, uri, options);
+        }
+        return rotateToOrientation(bitmap, orientation);
+    }
+
+    /**
+     * Decodes an image directly at the sampled resolution.
+     * @param contentResolver - the resolver used to open the image.
+     * @param uri - the uri of the image.
+     * @param options - the options to decode with.
+     * @return Bitmap - the decoded bitmap, or null if the image could not be decoded.
+     * @throws IOException - if the image could not be opened.
+     */
+    private static Bitmap decodeStream (ContentResolver contentResolver, Uri uri, BitmapFactory.Options options)
+            throws IOException
+    {
+        InputStream inputStream = openStream(contentResolver, uri);
+        try
+        {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally
+        {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Divides one dimension by a sample size, as the decoders do, counting any partial pixel.
+     * @param size - the dimension to divide.
+     * @param sampleSize - the sample size.
+     * @return int - the sampled dimension.
+     */
+    private static int divideRoundingUp (int size, int sampleSize)
+    {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * Rotates a decoded bitmap so that it is displayed upright, handing the unrotated bitmap to the pool.
+     * @param bitmap - the decoded bitmap.
+     * @param orientation - the clockwise rotation in degrees.
+     * @return Bitmap - the upright bitmap.
+     */
+    public static Bitmap rotateToOrientation (Bitmap bitmap, int orientation)
+    {
+        if (bitmap == null || orientation % 360 == 0)
+            return bitmap;
+        // rotate at the sampled resolution, so only working-size bitmaps are allocated
+        Matrix matrix = new Matrix();
+        matrix.postRotate(orientation);
+        RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        // a quarter turn covers every pixel of the rotated bitmap, so it does not need clearing
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap rotatedBitmap = pool.getDirty(
+                Math.round(bounds.width()), Math.round(bounds.height()), Bitmap.Config.ARGB_8888);
+        new Canvas(rotatedBitmap).drawBitmap(bitmap, matrix, null);
+        pool.put(bitmap);
+        return rotatedBitmap;
+    }
+
+    /**
+     * Opens an input stream for an image, failing if the resolver cannot provide one.
+     * @param contentResolver - the resolver used to open the image.
+     * @param uri - the uri of the image.
+     * @return InputStream - the stream of the image.
+     * @throws IOException - if the image could not be opened.
+     */
+    private static InputStream openStream (ContentResolver contentResolver, Uri uri) throws IOException
+    {
+        InputStream inputStream = contentResolver.openInputStream(uri);
+        if (inputStream == null)
+            throw new IOException("Unable to open an input stream for " + uri);
+        return inputStream;
+    }
+}
@@ -1,27 +1,293 @@
 package com.danstoakes.easycrop;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.danstoakes.easycrop.raster.CoverageMask;
+import com.danstoakes.easycrop.raster.PolygonRasteriser;
+import com.danstoakes.easycrop.raster.Raster;
+import com.danstoakes.easycrop.raster.RasterOps;
+import com.danstoakes.easycrop.raster.RasterScaler;
+
+import java.util.Arrays;
 
 /**
- * Helper class which stores the original and scaled versions of the bitmap, as well as helper methods.
+ * Helper class which stores the source image, the working and scaled versions of the bitmap,
+ * as well as helper methods. The bitmaps are recorded in the process-wide BitmapBudget, which may
+ * ask for them to be released while the handler is in the background.
  */
-public class BitmapHandler
+public class BitmapHandler implements BitmapBudget.Evictable
 {
+    private final BitmapBudget budget;
+    private ImageSource imageSource;
+    private final ImageTransform transform = new ImageTransform();
+
     private Bitmap unscaledBitmap;
     private Bitmap scaledBitmap;
+    private boolean evicted;
+
+    /**
+     * Constructor for the BitmapHandler class.
+     * @param budget - the budget which the bitmaps are recorded in.
+     */
+    public BitmapHandler (BitmapBudget budget)
+    {
+        this.budget = budget;
+        budget.touch(this);
+    }
+
+    /**
+     * Sets the source which the original pixels of the image are decoded from.
+     * @param imageSource - the source to set, which may be null if region decoding is unsupported.
+     */
+    public void setImageSource (ImageSource imageSource)
+    {
+        this.imageSource = imageSource;
+    }
+
+    /**
+     * Returns the source which the original pixels of the image are decoded from.
+     * @return ImageSource - the source of the image.
+     */
+    public ImageSource getImageSource ()
+    {
+        return imageSource;
+    }
+
+    /**
+     * Returns the rotations and flips which are applied to the image when it is drawn or cropped.
+     * @return ImageTransform - the transform of the image.
+     */
+    public ImageTransform getTransform ()
+    {
+        return transform;
+    }
+
+    /**
+     * Returns the upright width of the highest resolution version of the image, i.e., the source
+     * if there is one, otherwise the working bitmap.
+     * @return int - the upright width.
+     */
+    private int getBaseWidth ()
+    {
+        if (imageSource == null)
+            return unscaledBitmap.getWidth();
+        return imageSource.getOrientation() % 180 == 0 ? imageSource.getWidth() : imageSource.getHeight();
+    }
+
+    /**
+     * Returns the upright height of the highest resolution version of the image, i.e., the source
+     * if there is one, otherwise the working bitmap.
+     * @return int - the upright height.
+     */
+    private int getBaseHeight ()
+    {
+        if (imageSource == null)
+            return unscaledBitmap.getHeight();
+        return imageSource.getOrientation() % 180 == 0 ? imageSource.getHeight() : imageSource.getWidth();
+    }
+
+    /**
+     * Returns the matrix which maps the pixels of the highest resolution version of the image to
+     * the full resolution image once it has been rotated and flipped.
+     * @return Matrix - the base to transformed image matrix.
+     */
+    private Matrix getBaseMatrix ()
+    {
+        Matrix matrix = imageSource != null ? imageSource.getOrientationMatrix() : new Matrix();
+        matrix.postConcat(transform.getMatrix(getBaseWidth(), getBaseHeight()));
+        return matrix;
+    }
+
+    /**
+     * Returns the mapper which converts crop geometry drawn over the displayed image into the
+     * coordinates of the highest resolution version of the image.
+     * @param displayWidth - the width the image is displayed at.
+     * @param displayHeight - the height the image is displayed at.
+     * @return CropMapper - the mapper for the current rotations and flips.
+     */
+    public CropMapper getCropMapper (float displayWidth, float displayHeight)
+    {
+        int baseWidth = getBaseWidth();
+        int baseHeight = getBaseHeight();
+        float scale = transform.getWidth(baseWidth, baseHeight) / displayWidth;
+        // without a source, the working bitmap is the best available resolution
+        if (imageSource == null)
+            return new CropMapper(getBaseMatrix(), baseWidth, baseHeight, scale);
+        return new CropMapper(getBaseMatrix(), imageSource.getWidth(), imageSource.getHeight(), scale);
+    }
+
+    /**
+     * Decodes an area of the displayed image at full resolution, applying the rotations and flips
+     * only to the pixels within the area. Only the tiles of the source which intersect the area are decoded.
+     * This can take seconds for the largest images, so it is called on a background thread by BitmapCropper.
+     * @param mapper - the mapper from display coordinates to source coordinates.
+     * @param bounds - the area to decode, in display coordinates.
+     * @param mask - the polygon outlining the pixels to keep in display coordinates as x, y pairs, or null to keep them all.
+     * @param maskVertexCount - the number of vertices of the polygon.
+     * @return Bitmap - the area at full resolution, or null if the area is empty.
+     */
+    public Bitmap decodeCrop (CropMapper mapper, RectF bounds, float[] mask, int maskVertexCount)
+    {
+        // read the source once, as the handler may be evicted while the crop is decoded
+        ImageSource source = imageSource;
+        Bitmap working = unscaledBitmap;
+        RectF outputCrop = mapper.mapToOutput(bounds);
+        int width = Math.round(outputCrop.width());
+        int height = Math.round(outputCrop.height());
+        Rect region = mapper.getSourceRegion(bounds);
+        if (width <= 0 || height <= 0 || region.isEmpty() || (source == null && working == null))
+            return null;
+        // take the only full resolution bitmap of the crop, exactly the size of its bounds, from the pool
+        Bitmap bitmap = BitmapPool.getInstance().get(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Matrix matrix = mapper.getSourceToOutputMatrix(bounds);
+        // draw the region of the source onto the crop
+        drawSource(source, working, canvas, region, matrix, null);
+        if (mask != null)
+        {
+            // fill the mask over the crop, with the same winding rule as the outline drawn on screen,
+            // then keep only the pixels it covers
+            float[] outputMask = mapper.mapPolygonToOutput(mask, maskVertexCount, bounds);
+            CoverageMask coverage = PolygonRasteriser.rasterise(outputMask, maskVertexCount,
+                    PolygonRasteriser.FILL_NON_ZERO, true, width, height);
+            if (coverage == null)
+            {
+                BitmapPool.getInstance().put(bitmap);
+                return null;
+            }
+            applyMask(bitmap, coverage);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Scales the alpha of a bitmap by a coverage mask, a row at a time through one row buffer,
+     * clearing the pixels outside of the mask. The rows are masked on the calling thread, as the
+     * pixels of a Bitmap should only be read and written by one thread at a time.
+     * @param bitmap - the mutable bitmap to mask.
+     * @param mask - the coverage mask, which lies within the bitmap.
+     */
+    private static void applyMask (Bitmap bitmap, CoverageMask mask)
+    {
+        int width = bitmap.getWidth();
+        int maskLeft = mask.getLeft();
+        int maskTop = mask.getTop();
+        int maskRight = maskLeft + mask.getWidth();
+        int maskBottom = maskTop + mask.getHeight();
+        int[] row = new int[width];
+        for (int y = 0; y < bitmap.getHeight(); y++)
+        {
+            if (y < maskTop || y >= maskBottom)
+            {
+                // the row is wholly outside of the mask
+                Arrays.fill(row, 0);
+            } else
+            {
+                bitmap.getPixels(row, 0, width, 0, y, width, 1);
+                Arrays.fill(row, 0, maskLeft, 0);
+                Arrays.fill(row, maskRight, width, 0);
+                mask.applyToRow(row, maskLeft, y - maskTop);
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+    }
+
+    /**
+     * Draws a region of the highest resolution version of the image through a matrix.
+     * @param source - the source of the image, or null if there is none.
+     * @param working - the working bitmap, which is drawn if there is no source.
+     * @param canvas - the canvas to draw the region on.
+     * @param region - the region to draw, in source coordinates.
+     * @param matrix - the matrix mapping source coordinates to canvas coordinates.
+     * @param paint - the paint used to draw the region, which may be null.
+     */
+    private static void drawSource (ImageSource source, Bitmap working, Canvas canvas, Rect region,
+                                    Matrix matrix, Paint paint)
+    {
+        if (source != null)
+        {
+            // decode only the tiles of the source which intersect the region
+            source.drawRegion(canvas, region, matrix, paint);
+        } else
+        {
+            // the working bitmap is scaled up to the crop, so filter it
+            Paint bitmapPaint = paint != null ? new Paint(paint) : new Paint();
+            bitmapPaint.setFilterBitmap(true);
+            canvas.drawBitmap(working, matrix, bitmapPaint);
+        }
+    }
+
+    /**
+     * Releases the source image and the bitmaps held by the handler.
+     */
+    public void recycle ()
+    {
+        if (imageSource != null)
+            imageSource.recycle();
+        imageSource = null;
+        unscaledBitmap = null;
+        scaledBitmap = null;
+        budget.release(this);
+    }
 
     /**
-     * Sets the unscaled version of the bitmap.
+     * Releases the source and lets go of the bitmaps when the budget needs the memory back. The
+     * bitmaps are not recycled, as the display list of a view in the background may still draw
+     * them until it is redrawn; they are collected once nothing refers to them. The rotations and
+     * flips are kept, so the image looks the same once it is loaded again.
+     */
+    @Override
+    public void onEvicted ()
+    {
+        recycle();
+        evicted = true;
+    }
+
+    /**
+     * Returns whether the bitmaps were released by the budget, in which case the image needs to be
+     * loaded again before it can be shown.
+     * @return boolean - whether the handler has been evicted.
+     */
+    public boolean isEvicted ()
+    {
+        return evicted;
+    }
+
+    /**
+     * Returns the budget which the bitmaps are recorded in.
+     * @return BitmapBudget - the budget.
+     */
+    public BitmapBudget getBudget ()
+    {
+        return budget;
+    }
+
+    /**
+     * Marks the handler as in use, so that its bitmaps are the last to be evicted.
+     */
+    public void touch ()
+    {
+        budget.touch(this);
+    }
+
+    /**
+     * Sets the working version of the bitmap, which is subsampled from the source image.
      * @param bitmap - the bitmap to set.
      */
     public void setUnscaledBitmap (Bitmap bitmap)
     {
-        unscaledBitmap = bitmap;
+        unscaledBitmap = replace(unscaledBitmap, bitmap);
+        if (bitmap != null)
+            evicted = false;
     }
 
     /**
-     * Returns the unscaled version of the bitmap.
+     * Returns the working version of the bitmap, which is subsampled from the source image.
      * @return bitmap - the bitmap to retrieve.
      */
     public Bitmap getUnscaledBitmap ()
@@ -35,7 +301,24 @@ public class BitmapHandler
      */
     public void setScaledBitmap (Bitmap bitmap)
     {
-        scaledBitmap = bitmap;
+        scaledBitmap = replace(scaledBitmap, bitmap);
+    }
+
+    /**
+     * Swaps a held bitmap for another in the budget.
+     * @param previous - the bitmap being replaced, which may be null.
+     * @param bitmap - the replacement, which may be null.
+     * @return Bitmap - the replacement.
+     */
+    private Bitmap replace (Bitmap previous, Bitmap bitmap)
+    {
+        // the same bitmap may be held as both the working and the scaled version, in which case
+        // it is still held after being replaced in one of them
+        if (previous != null && previous != bitmap && unscaledBitmap != scaledBitmap)
+            budget.untrack(this, previous);
+        if (bitmap != null)
+            budget.track(this, bitmap);
+        return bitmap;
     }
 
     /**
@@ -48,85 +331,78 @@ public class BitmapHandler
     }
 
     /**
-     * Returns an input bitmap as a scaled representation.
+     * Returns an input bitmap as a scaled representation, averaging the area each pixel covers.
      * @param bitmap - the input bitmap.
      * @param width - the width of the application window.
      * @param height - the height of the application window.
      * @return Bitmap - the scaled representation of the input bitmap.
      */
     public static Bitmap getAsScaledBitmap (Bitmap bitmap, int width, int height)
+    {
+        return getAsScaledBitmap(bitmap, width, height, RasterScaler.FILTER_AREA);
+    }
+
+    /**
+     * Returns an input bitmap as a scaled representation.
+     * @param bitmap - the input bitmap.
+     * @param width - the width of the application window.
+     * @param height - the height of the application window.
+     * @param filter - the filter to scale with, either RasterScaler.FILTER_BOX, FILTER_AREA or FILTER_LANCZOS.
+     * @return Bitmap - the scaled representation of the input bitmap.
+     */
+    public static Bitmap getAsScaledBitmap (Bitmap bitmap, int width, int height, int filter)
     {
         // calculate the ratio in width/height between the image and the window
         float ratio = Math.min(
                 (float) width / bitmap.getWidth(),
                 (float) height / bitmap.getHeight());
         // adjust the width/height values so that they are scaled
-        int scaledWidth = Math.round(bitmap.getWidth() * ratio);
-        int scaledHeight = Math.round(bitmap.getHeight() * ratio);
+        int scaledWidth = Math.max(1, Math.round(bitmap.getWidth() * ratio));
+        int scaledHeight = Math.max(1, Math.round(bitmap.getHeight() * ratio));
+        if (scaledWidth == bitmap.getWidth() && scaledHeight == bitmap.getHeight())
+            return bitmap;
         // create a scaled bitmap using the new dimensions
-        return Bitmap.createScaledBitmap(
-                bitmap, scaledWidth, scaledHeight, true);
+        return toBitmap(RasterScaler.scale(toRaster(bitmap), scaledWidth, scaledHeight, filter));
     }
 
     /**
-     * Returns the matrix which can be applied to a bitmap to perform mirroring/flipping.
-     * @param bitmap - the input bitmap.
-     * @param centreX - the centre x-ordinate.
-     * @param centreY - the center y-ordinate.
-     * @return Matrix - the mirror/flip matrix.
+     * Returns the axis an image is mirrored in when no axis is chosen: x if it is portrait, and y if
+     * it is landscape.
+     * @param width - the width of the image.
+     * @param height - the height of the image.
+     * @return int - either RasterOps.FLIP_HORIZONTAL or RasterOps.FLIP_VERTICAL.
      */
-    public static Matrix getFlipMatrix(Bitmap bitmap, int centreX, int centreY)
+    public static int getDefaultFlipAxis (int width, int height)
     {
-        Matrix matrix = new Matrix();
-        if (bitmap.getHeight() > bitmap.getWidth())
-        {
-            // mirror in x if the bitmap is portrait
-            matrix.postScale(-1, 1, centreX, centreY);
-        } else
-        {
-            // mirror in y if the bitmap is landscape
-            matrix.postScale(1, -1, centreX, centreY);
-        }
-        return matrix;
+        return height > width ? RasterOps.FLIP_HORIZONTAL : RasterOps.FLIP_VERTICAL;
     }
 
     /**
-     * Returns the flipped representation of an input bitmap.
+     * Copies the pixels of a bitmap into a raster, so that they can be worked on by RasterOps.
      * @param bitmap - the input bitmap.
-     * @return Bitmap - the flipped bitmap.
+     * @return Raster - the ARGB pixels of the bitmap.
      */
-    public static Bitmap flipBitmap (Bitmap bitmap)
+    public static Raster toRaster (Bitmap bitmap)
     {
-        // retrieve the dimensions of the bitmap
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
-        // create a bitmap by passing in the flip matrix as a parameter
-        return Bitmap.createBitmap(
-                bitmap, 0, 0, width, height,
-                getFlipMatrix(bitmap,width / 2, height / 2), true);
+        Raster raster = new Raster(width, height);
+        bitmap.getPixels(raster.getPixels(), 0, width, 0, 0, width, height);
+        return raster;
     }
 
     /**
-     * Returns the matrix which can be applied to a bitmap to perform rotation.
-     * @return Matrix - the rotation matrix.
-     */
-    public static Matrix getRotateMatrix()
-    {
-        // create a new matrix and rotate 90 degrees clockwise
-        Matrix matrix = new Matrix();
-        matrix.postRotate(90);
-        // return the matrix
-        return matrix;
-    }
-
-    /**
-     * Returns the rotated representation of an input bitmap.
-     * @param bitmap - the input bitmap.
-     * @return Bitmap - the rotated bitmap.
+     * Copies the pixels of a raster into a mutable bitmap, reusing a pooled one if possible.
+     * @param raster - the input raster.
+     * @return Bitmap - the ARGB_8888 bitmap holding the pixels.
      */
-    public static Bitmap rotateBitmap (Bitmap bitmap)
+    public static Bitmap toBitmap (Raster raster)
     {
-        return Bitmap.createBitmap(
-                bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), getRotateMatrix(), true);
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        // every pixel is overwritten, so the pooled bitmap does not need clearing
+        Bitmap bitmap = BitmapPool.getInstance().getDirty(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(raster.getPixels(), 0, width, 0, 0, width, height);
+        return bitmap;
     }
 }
\ No newline at end of file
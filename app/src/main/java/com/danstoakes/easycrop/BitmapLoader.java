@@ -0,0 +1,239 @@
+package com.danstoakes.easycrop;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.danstoakes.easycrop.raster.RasterScaler;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class which decodes images on a bounded background executor. A low resolution preview is delivered
+ * first so that something is displayed almost immediately, followed by the display resolution bitmap.
+ */
+public class BitmapLoader
+{
+    private static final int THREAD_COUNT = 2;
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int PREVIEW_DIVISOR = 8;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY));
+
+    static
+    {
+        // let the decode threads finish when no images are being loaded
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private Future<?> future;
+
+    /**
+     * Starts loading an image in the background. The listener is always called on the UI thread, and is
+     * not called at all once the load is cancelled.
+     * @param contentResolver - the resolver used to open the image.
+     * @param uri - the uri of the image.
+     * @param width - the width the image is displayed within.
+     * @param height - the height the image is displayed within.
+     * @param listener - the listener which receives the decoded bitmaps.
+     */
+    public void load (final ContentResolver contentResolver, final Uri uri,
+                      final int width, final int height, final BitmapLoadListener listener)
+    {
+        try
+        {
+            future = EXECUTOR.submit(new Runnable()
+            {
+                /**
+                 * Decodes the preview and display resolution bitmaps, delivering each as it is ready.
+                 */
+                @Override
+                public void run()
+                {
+                    decode(contentResolver, uri, width, height, listener);
+                }
+            });
+        } catch (RejectedExecutionException e)
+        {
+            Log.w("APP_ERROR", "Too many images are being loaded at once.");
+            deliverFailure(listener);
+        }
+    }
+
+    /**
+     * Cancels the load, interrupting the decode if it is running and discarding any undelivered bitmaps.
+     */
+    public void cancel ()
+    {
+        cancelled.set(true);
+        if (future != null)
+            future.cancel(true);
+    }
+
+    /**
+     * Returns whether the load has been cancelled.
+     * @return boolean - whether the load has been cancelled.
+     */
+    public boolean isCancelled ()
+    {
+        return cancelled.get();
+    }
+
+    /**
+     * Decodes the image on the calling (background) thread.
+     * @param contentResolver - the resolver used to open the image.
+     * @param uri - the uri of the image.
+     * @param width - the width the image is displayed within.
+     * @param height - the height the image is displayed within.
+     * @param listener - the listener which receives the decoded bitmaps.
+     */
+    private void decode (ContentResolver contentResolver, Uri uri, int width, int height, BitmapLoadListener listener)
+    {
+        ImageSource imageSource = null;
+        try
+        {
+            // open the image as a region decodable source if its format allows it
+            imageSource = ImageSource.open(contentResolver, uri);
+        } catch (IOException e)
+        {
+            Log.w("APP_INFO", "Region decoding is unavailable for the input image: " + e.getMessage());
+        }
+
+        try
+        {
+            // decode and deliver a thumbnail grade preview first
+            Bitmap thumbnail = imageSource != null
+                    ? imageSource.decodePreview(width / PREVIEW_DIVISOR, height / PREVIEW_DIVISOR)
+                    : BitmapDecoder.decodeSampledBitmap(
+                            contentResolver, uri, width / PREVIEW_DIVISOR, height / PREVIEW_DIVISOR);
+            if (thumbnail != null && !isCancelled())
+            {
+                // the thumbnail is only shown briefly, so it is enlarged with the fastest filter
+                Bitmap preview = BitmapHandler.getAsScaledBitmap(
+                        thumbnail, width, height, RasterScaler.FILTER_BOX);
+                if (preview != thumbnail)
+                    BitmapPool.getInstance().put(thumbnail);
+                deliverPreview(preview, listener);
+            }
+            // decode the display resolution bitmap, unless the activity has gone in the meantime
+            if (!isCancelled())
+            {
+                Bitmap bitmap = imageSource != null
+                        ? imageSource.decodePreview(width, height)
+                        : BitmapDecoder.decodeSampledBitmap(contentResolver, uri, width, height);
+                if (bitmap == null)
+                {
+                    deliverFailure(listener);
+                } else if (!isCancelled())
+                {
+                    deliverBitmap(imageSource, bitmap,
+                            BitmapHandler.getAsScaledBitmap(bitmap, width, height, RasterScaler.FILTER_LANCZOS),
+                            listener);
+                    return;
+                }
+            }
+        } catch (IOException e)
+        {
+            Log.w("APP_ERROR", "There was an error retrieving the bitmap from the input image.");
+            deliverFailure(listener);
+        }
+        // the source is only handed over once the bitmap is delivered
+        if (imageSource != null)
+            imageSource.recycle();
+    }
+
+    /**
+     * Posts the preview bitmap to the listener on the UI thread.
+     * @param preview - the preview bitmap, scaled to the display.
+     * @param listener - the listener which receives the preview.
+     */
+    private void deliverPreview (final Bitmap preview, final BitmapLoadListener listener)
+    {
+        mainHandler.post(new Runnable()
+        {
+            /**
+             * Hands the preview to the listener if the load is still active.
+             */
+            @Override
+            public void run()
+            {
+                if (!isCancelled())
+                    listener.onPreviewLoaded(preview);
+            }
+        });
+    }
+
+    /**
+     * Posts the display resolution bitmap to the listener on the UI thread.
+     * @param imageSource - the source of the image, which may be null.
+     * @param bitmap - the working bitmap.
+     * @param scaledBitmap - the working bitmap, scaled to the display.
+     * @param listener - the listener which receives the bitmap.
+     */
+    private void deliverBitmap (final ImageSource imageSource, final Bitmap bitmap, final Bitmap scaledBitmap,
+                                final BitmapLoadListener listener)
+    {
+        mainHandler.post(new Runnable()
+        {
+            /**
+             * Hands the bitmap to the listener if the load is still active.
+             */
+            @Override
+            public void run()
+            {
+                if (!isCancelled())
+                {
+                    listener.onBitmapLoaded(imageSource, bitmap, scaledBitmap);
+                } else if (imageSource != null)
+                {
+                    // the activity has gone, so the source is no longer needed
+                    imageSource.recycle();
+                }
+            }
+        });
+    }
+
+    /**
+     * Posts a failure to the listener on the UI thread.
+     * @param listener - the listener which is notified.
+     */
+    private void deliverFailure (final BitmapLoadListener listener)
+    {
+        mainHandler.post(new Runnable()
+        {
+            /**
+             * Notifies the listener if the load is still active.
+             */
+            @Override
+            public void run()
+            {
+                if (!isCancelled())
+                    listener.onLoadFailed();
+            }
+        });
+    }
+
+    /**
+     * Interface which handles callbacks as the stages of the load complete.
+     */
+    public interface BitmapLoadListener
+    {
+        void onPreviewLoaded (Bitmap preview);
+
+        void onBitmapLoaded (ImageSource imageSource, Bitmap bitmap, Bitmap scaledBitmap);
+
+        void onLoadFailed ();
+    }
+}
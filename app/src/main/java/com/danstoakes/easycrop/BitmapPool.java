@@ -0,0 +1,189 @@
+package com.danstoakes.easycrop;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide pool of mutable bitmaps which are no longer needed, bucketed by their width, height
+ * and config, so that decoding, transforming and cropping can reuse them instead of allocating
+ * (and later collecting) a new bitmap every time. The least recently pooled bitmaps are recycled
+ * once the pool holds more than its share of the heap.
+ */
+public class BitmapPool
+{
+    // the share of the maximum heap which pooled bitmaps may take up
+    private static final int MAX_BYTES_DIVISOR = 8;
+
+    private static BitmapPool instance;
+
+    private final long maxBytes;
+    private final Map<String, List<Bitmap>> buckets = new HashMap<>();
+    // every pooled bitmap in the order it was pooled, oldest first
+    private final LinkedList<Bitmap> order = new LinkedList<>();
+    private long currentBytes;
+    private int requestCount;
+    private int hitCount;
+
+    /**
+     * Returns the pool for the process, creating it when it is first needed.
+     * @return BitmapPool - the pool for the process.
+     */
+    public static synchronized BitmapPool getInstance ()
+    {
+        if (instance == null)
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / MAX_BYTES_DIVISOR);
+        return instance;
+    }
+
+    /**
+     * Constructor for the BitmapPool class.
+     * @param maxBytes - the number of bytes the pooled bitmaps may take up.
+     */
+    BitmapPool (long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a transparent, mutable bitmap, reusing a pooled one if there is one of the same size and config.
+     * @param width - the width of the bitmap.
+     * @param height - the height of the bitmap.
+     * @param config - the config of the bitmap.
+     * @return Bitmap - the bitmap, which is cleared to transparent.
+     */
+    public Bitmap get (int width, int height, Bitmap.Config config)
+    {
+        Bitmap bitmap = getReusable(width, height, config);
+        if (bitmap == null)
+            return Bitmap.createBitmap(width, height, config);
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Returns a mutable bitmap whose pixels are undefined, for callers which overwrite every pixel.
+     * A pooled bitmap is reused if there is one of the same size and config.
+     * @param width - the width of the bitmap.
+     * @param height - the height of the bitmap.
+     * @param config - the config of the bitmap.
+     * @return Bitmap - the bitmap.
+     */
+    public Bitmap getDirty (int width, int height, Bitmap.Config config)
+    {
+        Bitmap bitmap = getReusable(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Takes a pooled bitmap of the same size and config out of the pool, without allocating one if
+     * there is none. Suited to BitmapFactory.Options.inBitmap, where null means the decoder allocates.
+     * @param width - the width of the bitmap.
+     * @param height - the height of the bitmap.
+     * @param config - the config of the bitmap.
+     * @return Bitmap - the pooled bitmap with undefined pixels, or null if there is none.
+     */
+    public synchronized Bitmap getReusable (int width, int height, Bitmap.Config config)
+    {
+        requestCount++;
+        List<Bitmap> bucket = buckets.get(getKey(width, height, config));
+        if (bucket == null || bucket.isEmpty())
+            return null;
+        hitCount++;
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        order.remove(bitmap);
+        currentBytes -= bitmap.getAllocationByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap which is no longer needed to the pool. The caller must not use the bitmap
+     * afterwards: it is either kept for reuse or, if it cannot be reused, recycled.
+     * @param bitmap - the bitmap to pool, which may be null.
+     */
+    public synchronized void put (Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bitmap.getAllocationByteCount() > maxBytes)
+        {
+            bitmap.recycle();
+            return;
+        }
+        String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        List<Bitmap> bucket = buckets.get(key);
+        if (bucket == null)
+        {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        order.add(bitmap);
+        currentBytes += bitmap.getAllocationByteCount();
+        // recycle the oldest bitmaps until the pool is back within its share of the heap
+        while (currentBytes > maxBytes)
+        {
+            Bitmap oldest = order.removeFirst();
+            buckets.get(getKey(oldest.getWidth(), oldest.getHeight(), oldest.getConfig())).remove(oldest);
+            currentBytes -= oldest.getAllocationByteCount();
+            oldest.recycle();
+        }
+    }
+
+    /**
+     * Recycles every pooled bitmap, e.g., when the system is low on memory.
+     */
+    public synchronized void clear ()
+    {
+        for (Bitmap bitmap : order)
+            bitmap.recycle();
+        order.clear();
+        buckets.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Returns the bucket key for a size and config.
+     * @param width - the width of the bitmap.
+     * @param height - the height of the bitmap.
+     * @param config - the config of the bitmap.
+     * @return String - the key of the bucket.
+     */
+    private static String getKey (int width, int height, Bitmap.Config config)
+    {
+        return width + "x" + height + ":" + config;
+    }
+
+    /**
+     * Returns the share of requests which were served by a pooled bitmap.
+     * @return float - the hit rate, from 0 to 1.
+     */
+    public synchronized float getHitRate ()
+    {
+        return requestCount == 0 ? 0 : (float) hitCount / requestCount;
+    }
+
+    /**
+     * Returns the number of bytes taken up by the pooled bitmaps.
+     * @return long - the current total in bytes.
+     */
+    public synchronized long getCurrentBytes ()
+    {
+        return currentBytes;
+    }
+
+    /**
+     * Returns a summary of the pool, for logging.
+     * @return String - the size and hit rate of the pool.
+     */
+    @Override
+    public synchronized String toString ()
+    {
+        return "pooled " + order.size() + " bitmaps, " + currentBytes / 1024 + "KB of " + maxBytes / 1024
+                + "KB, " + hitCount + "/" + requestCount + " hits";
+    }
+}
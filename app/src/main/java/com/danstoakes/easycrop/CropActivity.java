@@ -2,11 +2,8 @@ package com.danstoakes.easycrop;
 
 import android.annotation.SuppressLint;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
 import android.net.Uri;
-import android.provider.MediaStore;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -14,18 +11,56 @@ import android.view.*;
 import android.widget.ImageButton;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.content.FileProvider;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 
 /**
  * The main activity for the cropping aspect of the application.
  */
 public class CropActivity extends AppCompatActivity implements View.OnClickListener
 {
+    private BitmapHandler bitmapHandler;
+    private BitmapLoader bitmapLoader;
+    private BitmapCropper bitmapCropper;
     private CropView cropView;
+    private FrameScheduler frameScheduler;
+    private int pendingVisibility = View.VISIBLE;
+    private int appliedVisibility = View.VISIBLE;
+    private final FrameScheduler.FrameListener visibilityListener = new FrameScheduler.FrameListener()
+    {
+        /**
+         * Applies the most recently requested visibility of the UI elements, if it has changed.
+         * @param frameTimeNanos - the time at which the frame started rendering.
+         */
+        @Override
+        public void onFrame(long frameTimeNanos)
+        {
+            if (pendingVisibility != appliedVisibility)
+                applyUIVisibility(pendingVisibility);
+        }
+    };
+
+    private final BitmapCropper.BitmapCropListener cropListener = new BitmapCropper.BitmapCropListener()
+    {
+        /**
+         * Callback method which hands the crop to ViewActivity once it has been decoded.
+         * @param croppedBitmap - the cropped bitmap, or null if it was empty or could not be decoded.
+         */
+        @Override
+        public void onBitmapCropped(Bitmap croppedBitmap)
+        {
+            bitmapCropper = null;
+            // ensure that the cropped image is not erroneous
+            if (croppedBitmap == null)
+            {
+                showCropError();
+                return;
+            }
+            // hand the crop to ViewActivity in memory, where it is only encoded if it is shared or saved
+            String token = CropResultStore.getInstance().put(croppedBitmap, BitmapBudget.getInstance(CropActivity.this));
+            Intent editImageActivityIntent = new Intent(CropActivity.this, ViewActivity.class)
+                    .putExtra("croppedImageToken", token);
+            startActivity(editImageActivityIntent);
+        }
+    };
 
     /**
      * The first method called by the class, which handles setting up the UI, touch events,
@@ -41,11 +76,13 @@ public class CropActivity extends AppCompatActivity implements View.OnClickListe
         setContentView(R.layout.activity_crop);
         // set the fullscreen layout flags
         getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN, WindowManager.LayoutParams.FLAG_FULLSCREEN);
-        // initialise a BitmapHandler object
-        BitmapHandler bitmapHandler = new BitmapHandler();
+        // initialise a BitmapHandler object, which records its bitmaps in the process-wide budget
+        bitmapHandler = new BitmapHandler(BitmapBudget.getInstance(this));
         // locate, initialise, and set up listeners for the main CropView
         cropView = findViewById(R.id.cropView);
-        cropView.initialise(getDisplayMetrics().widthPixels, getDisplayMetrics().heightPixels, bitmapHandler);
+        // input and visibility changes are committed once per frame, with frame timings recorded
+        frameScheduler = new FrameScheduler(getWindowManager().getDefaultDisplay().getRefreshRate());
+        cropView.initialise(bitmapHandler, frameScheduler);
         cropView.setOnTouchListener(new View.OnTouchListener()
         {
             /**
@@ -78,21 +115,8 @@ public class CropActivity extends AppCompatActivity implements View.OnClickListe
                 return false;
             }
         });
-        // get the bitmap from the image which was passed as an uri from MainActivity
-        Bitmap imageBitmap = getBitmapFromImage();
-        if (imageBitmap != null)
-        {
-            // set the bitmap in its raw/unmoved form in BitmapHandler
-            bitmapHandler.setUnscaledBitmap(imageBitmap);
-            // scale the bitmap so that it can be centered/represented on the canvas
-            Bitmap scaledBitmap = BitmapHandler.getAsScaledBitmap(
-                    imageBitmap, getDisplayMetrics().widthPixels, getDisplayMetrics().heightPixels);
-            cropView.setBitmap(scaledBitmap);
-        } else
-        {
-            Toast.makeText(CropActivity.this,
-                    "There was a problem loading the selected image.", Toast.LENGTH_LONG).show();
-        }
+        // load the image which was passed as an uri from MainActivity in the background
+        loadBitmapFromImage();
         // set the click listeners for the UI buttons
         ImageButton cropButton = findViewById(R.id.cropButton);
         cropButton.setOnClickListener(this);
@@ -127,11 +151,26 @@ public class CropActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     /**
-     * Hides or displays the UI buttons within the application depending on the input argument.
+     * Hides or displays the UI buttons within the application depending on the input argument. The
+     * change is applied at the next frame, so that quick taps only change the visibility once.
      * @param showType - whether to display or hide the view elements.
      */
     private void handleUIElements (int showType)
     {
+        pendingVisibility = showType;
+        frameScheduler.schedule(visibilityListener);
+    }
+
+    /**
+     * Sets the visibility of the UI buttons.
+     * @param showType - whether to display or hide the view elements.
+     */
+    private void applyUIVisibility (int showType)
+    {
+        // the buttons stay visible for the classic crop
+        if (cropView.getCropType() == CropView.CROP_CLASSIC)
+            return;
+        appliedVisibility = showType;
         // get the view elements as a ViewGroup
         ViewGroup viewGroup = findViewById(R.id.container);
         // loop through each element
@@ -141,119 +180,92 @@ public class CropActivity extends AppCompatActivity implements View.OnClickListe
             // if the view is not the main CropView object
             if (view.getId() != R.id.cropView)
             {
-                // if the user is not using the classic crop
-                if (cropView.getCropType() != 1 && view.getId() != R.id.lassoButton)
+                // if the view is not the lasso button
+                if (view.getId() != R.id.lassoButton)
                     view.setVisibility(showType);
             }
         }
     }
 
     /**
-     * Returns the rotation matrix for an input image.
-     * @param uri - the uri of the input image.
-     * @return Matrix - the rotation matrix for the image.
+     * Loads the input image (via an intent) using its uri on a background thread. A low resolution
+     * preview is displayed first, followed by the image decoded at a resolution suited to the display.
      */
-    private Matrix getRotationMatrix (Uri uri)
+    private void loadBitmapFromImage()
     {
-        int orientation = 0;
-        // initialise a cursor object with the desired flag
-        Cursor cursor = this.getContentResolver().query(uri, new String[] {MediaStore.Images.ImageColumns.ORIENTATION},
-                null, null, null);
-        if (cursor != null)
+        // if the intent is null, i.e., no image was sent
+        if (getIntent().getStringExtra("imageUri") == null)
         {
-            if (cursor.getCount() != 1)
+            showLoadError();
+            return;
+        }
+        Uri uri = Uri.parse(getIntent().getStringExtra("imageUri"));
+        bitmapLoader = new BitmapLoader();
+        bitmapLoader.load(getContentResolver(), uri,
+                getDisplayMetrics().widthPixels, getDisplayMetrics().heightPixels, new BitmapLoader.BitmapLoadListener()
+        {
+            /**
+             * Callback method which displays the low resolution preview while the image is decoded.
+             * @param preview - the preview, scaled to the display.
+             */
+            @Override
+            public void onPreviewLoaded(Bitmap preview)
             {
-                // orientation doesn't change
-                orientation = 1;
-            } else
+                // the decoded image may already be displayed if the preview arrives late
+                if (bitmapHandler.getUnscaledBitmap() == null)
+                    cropView.setBitmap(preview);
+            }
+
+            /**
+             * Callback method which sets the decoded image in the BitmapHandler and displays it.
+             * @param imageSource - the source of the image, which may be null.
+             * @param bitmap - the working bitmap.
+             * @param scaledBitmap - the working bitmap, scaled to the display.
+             */
+            @Override
+            public void onBitmapLoaded(ImageSource imageSource, Bitmap bitmap, Bitmap scaledBitmap)
             {
-                // image orientation needs to change
-                cursor.moveToFirst();
-                orientation = cursor.getInt(0);
+                // set the source and the bitmap in its working/unmoved form in BitmapHandler
+                bitmapHandler.setImageSource(imageSource);
+                bitmapHandler.setUnscaledBitmap(bitmap);
+                cropView.setBitmap(scaledBitmap);
             }
-            cursor.close();
-        }
 
-        if (orientation > 0)
-        {
-            // create a matrix object and apply the rotation
-            Matrix matrix = new Matrix();
-            matrix.postRotate(orientation);
-            return matrix;
-        }
-        return null;
+            /**
+             * Callback method which informs the user that the image could not be loaded.
+             */
+            @Override
+            public void onLoadFailed()
+            {
+                showLoadError();
+            }
+        });
     }
 
     /**
-     * Returns a Bitmap representation of an input image (via an intent) using its uri.
-     * @return Bitmap - the representation of the image.
+     * Informs the user that the selected image could not be loaded.
      */
-    private Bitmap getBitmapFromImage()
+    private void showLoadError()
     {
-        // if the intent is not null, i.e., an image was sent
-        if (getIntent().getStringExtra("imageUri") != null)
-        {
-            try
-            {
-                // get the uri of the image and create a bitmap using it
-                Uri uri = Uri.parse(getIntent().getStringExtra("imageUri"));
-                Bitmap imageBitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), uri);
-                // rotate the bitmap if necessary and return it
-                imageBitmap = Bitmap.createBitmap(
-                        imageBitmap, 0, 0,
-                        imageBitmap.getWidth(), imageBitmap.getHeight(),
-                        getRotationMatrix(uri), true);
-                return imageBitmap;
-            } catch(IOException e)
-            {
-                Log.w("APP_ERROR", "There was an error retrieving the bitmap from the input image.");
-            }
-        }
-        return null;
+        Toast.makeText(CropActivity.this,
+                "There was a problem loading the selected image.", Toast.LENGTH_LONG).show();
     }
 
     /**
-     * Returns the DisplayMetrics for the application, i.e., the width and height.
-     * @return DisplayMetrics - the metrics for the application.
+     * Informs the user that there is no area to crop.
      */
-    private DisplayMetrics getDisplayMetrics()
+    private void showCropError()
     {
-        return getResources().getDisplayMetrics();
+        Toast.makeText(CropActivity.this, "Please select an area to crop", Toast.LENGTH_LONG).show();
     }
 
     /**
-     * Returns the Uri within storage for a Bitmap object.
-     * @param image - the bitmap to retrieve the Uri for.
-     * @return Uri - the Uri of the bitmap.
+     * Returns the DisplayMetrics for the application, i.e., the width and height.
+     * @return DisplayMetrics - the metrics for the application.
      */
-    private Uri getUri(Bitmap image)
+    private DisplayMetrics getDisplayMetrics()
     {
-        // access the cache image folder
-        File imagesFolder = new File(getCacheDir(), "images");
-        try
-        {
-            // check that the directory exists/create it
-            boolean created = false;
-            if (!imagesFolder.exists())
-                created = imagesFolder.mkdirs();
-            // if the directory is valid
-            if (imagesFolder.exists() || created)
-            {
-                // create a temporary file
-                File file = new File(imagesFolder, "shared_image.png");
-                // write the file to storage
-                FileOutputStream fileOutputStream = new FileOutputStream(file);
-                image.compress(Bitmap.CompressFormat.PNG, 100, fileOutputStream);
-                fileOutputStream.flush();
-                fileOutputStream.close();
-                // retrieve the Uri from the file written to temporary storage
-                return FileProvider.getUriForFile(this, "com.danstoakes.fileprovider", file);
-            }
-        } catch (IOException e)
-        {
-            Log.d("tag", "IOException while trying to write file for sharing: " + e.getMessage());
-        }
-        return null;
+        return getResources().getDisplayMetrics();
     }
 
     /**
@@ -263,43 +275,39 @@ public class CropActivity extends AppCompatActivity implements View.OnClickListe
     @Override
     public void onClick(View v) {
         int viewID = v.getId();
+        // the image can only be cropped or transformed once it has finished loading
+        if (bitmapHandler.getUnscaledBitmap() == null && viewID != R.id.lassoButton)
+            return;
 
         if (viewID == R.id.cropButton)
         {
-            // crop the image using the crop method selected by the user
-            Bitmap croppedBitmap;
+            // ignore further taps until the crop which is being decoded has arrived
+            if (bitmapCropper != null)
+                return;
+            // crop the image in the background using the crop method selected by the user
+            bitmapCropper = new BitmapCropper();
+            boolean cropping;
             if (cropView.getCropType() == CropView.CROP_CLASSIC)
             {
-                croppedBitmap = cropView.cropBitmap();
+                cropping = cropView.cropBitmap(bitmapCropper, cropListener);
             } else
             {
-                croppedBitmap = cropView.cropBitmapFreehand(
-                        getDisplayMetrics().widthPixels, getDisplayMetrics().heightPixels);
+                cropping = cropView.cropBitmapFreehand(bitmapCropper, cropListener);
             }
-            // ensure that the cropped image is not erroneous
-            if (croppedBitmap == null)
+            // ensure that there is an area to crop
+            if (!cropping)
             {
-                Toast.makeText(CropActivity.this, "Please select an area to crop", Toast.LENGTH_LONG).show();
-            } else
-            {
-                // generate the uri for the bitmap so that it can be transferred to ViewActivity
-                Uri imageUri = getUri(croppedBitmap);
-                if (imageUri != null)
-                {
-                    // create a new intent with the Uri of the cropped image
-                    Intent editImageActivityIntent = new Intent(CropActivity.this, ViewActivity.class)
-                            .putExtra("croppedImage", imageUri.toString());
-                    startActivity(editImageActivityIntent);
-                }
+                bitmapCropper = null;
+                showCropError();
             }
         } else if (viewID == R.id.rotateButton)
         {
             // rotate the bitmap 90 degrees clockwise
-            cropView.rotateBitmap(getDisplayMetrics().widthPixels, getDisplayMetrics().heightPixels);
+            cropView.rotateBitmap();
         } else if (viewID == R.id.flipButton)
         {
             // mirror the bitmap in the x/y axis depending on the photo layout
-            cropView.flipBitmap(getDisplayMetrics().widthPixels, getDisplayMetrics().heightPixels);
+            cropView.flipBitmap();
         } else if (viewID == R.id.lassoButton)
         {
             // alter the UI button to represent whether the lasso is selected or not
@@ -314,6 +322,53 @@ public class CropActivity extends AppCompatActivity implements View.OnClickListe
         }
     }
 
+    /**
+     * Marks the image as in use when the activity returns to the foreground, and loads it again if
+     * its bitmaps were evicted to make room for another activity's.
+     */
+    @Override
+    protected void onResume()
+    {
+        super.onResume();
+        bitmapHandler.touch();
+        if (bitmapHandler.isEvicted())
+        {
+            if (bitmapLoader != null)
+                bitmapLoader.cancel();
+            loadBitmapFromImage();
+        }
+    }
+
+    /**
+     * Empties the bitmap pool when the system is running low on memory.
+     * @param level - how much memory the system would like to be released.
+     */
+    @Override
+    public void onTrimMemory(int level)
+    {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            BitmapPool.getInstance().clear();
+    }
+
+    /**
+     * Cancels any image which is still loading or cropping and releases the source image when the activity is destroyed.
+     */
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        if (bitmapLoader != null)
+            bitmapLoader.cancel();
+        if (bitmapCropper != null)
+            bitmapCropper.cancel();
+        frameScheduler.cancel();
+        bitmapHandler.recycle();
+        // report how well the pool is sized, and whether frames stayed within their budget
+        Log.d("APP_MEMORY", BitmapBudget.getInstance(this) + "; " + BitmapPool.getInstance());
+        Log.d("APP_FRAMES", frameScheduler.toString());
+    }
+
     /**
      * Handles the actions performed if the user presses the back button/gestures back.
      */
@@ -0,0 +1,117 @@
+package com.danstoakes.easycrop;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Class which maps crop geometry drawn over the displayed image back onto the pixels of the source
+ * image, taking the orientation, rotations, flips, and display scaling into account.
+ * Three coordinate spaces are involved: display space, relative to the top left of the image as
+ * displayed; source space, the stored pixels of the source image; and output space, the full
+ * resolution image once it has been rotated and flipped.
+ */
+public class CropMapper
+{
+    private final Matrix sourceToOutput;
+    private final Matrix displayToSource;
+
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final float scale;
+
+    /**
+     * Constructor for the CropMapper class.
+     * @param sourceToOutput - the matrix which maps source pixels to output pixels.
+     * @param sourceWidth - the width of the source image.
+     * @param sourceHeight - the height of the source image.
+     * @param scale - the number of output pixels per display pixel.
+     */
+    public CropMapper (Matrix sourceToOutput, int sourceWidth, int sourceHeight, float scale)
+    {
+        this.sourceToOutput = new Matrix(sourceToOutput);
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.scale = scale;
+        // display -> output is a plain scale, so display -> source is its inverse followed by output -> source
+        displayToSource = new Matrix();
+        sourceToOutput.invert(displayToSource);
+        displayToSource.preScale(scale, scale);
+    }
+
+    /**
+     * Returns the number of output pixels per display pixel.
+     * @return float - the display to output scale.
+     */
+    public float getScale ()
+    {
+        return scale;
+    }
+
+    /**
+     * Maps a rectangle from display space into source space.
+     * @param rect - the rectangle in display space.
+     * @return RectF - the bounds of the rectangle in source space.
+     */
+    public RectF mapRect (RectF rect)
+    {
+        RectF sourceRect = new RectF();
+        displayToSource.mapRect(sourceRect, rect);
+        return sourceRect;
+    }
+
+    /**
+     * Maps a polygon from display space onto an output bitmap holding a display space rectangle.
+     * Display to output is a plain scale, so each vertex is scaled and moved by the rectangle.
+     * @param vertices - the polygon in display space as x, y pairs.
+     * @param vertexCount - the number of vertices.
+     * @param rect - the rectangle in display space which the output bitmap holds.
+     * @return float[] - a copy of the polygon in the coordinates of the output bitmap.
+     */
+    public float[] mapPolygonToOutput (float[] vertices, int vertexCount, RectF rect)
+    {
+        float[] outputVertices = new float[vertexCount * 2];
+        for (int i = 0; i < vertexCount * 2; i += 2)
+        {
+            outputVertices[i] = (vertices[i] - rect.left) * scale;
+            outputVertices[i + 1] = (vertices[i + 1] - rect.top) * scale;
+        }
+        return outputVertices;
+    }
+
+    /**
+     * Maps a rectangle from display space into output space.
+     * @param rect - the rectangle in display space.
+     * @return RectF - the rectangle in output space.
+     */
+    public RectF mapToOutput (RectF rect)
+    {
+        return new RectF(rect.left * scale, rect.top * scale, rect.right * scale, rect.bottom * scale);
+    }
+
+    /**
+     * Returns the region of the source image which has to be decoded to fill a display space rectangle.
+     * @param rect - the rectangle in display space.
+     * @return Rect - the region in source space, rounded out and kept within the source image.
+     */
+    public Rect getSourceRegion (RectF rect)
+    {
+        Rect region = new Rect();
+        mapRect(rect).roundOut(region);
+        if (!region.intersect(0, 0, sourceWidth, sourceHeight))
+            region.setEmpty();
+        return region;
+    }
+
+    /**
+     * Returns the matrix which maps source pixels onto an output bitmap holding a display space rectangle.
+     * @param rect - the rectangle in display space which the output bitmap holds.
+     * @return Matrix - the source to output bitmap matrix.
+     */
+    public Matrix getSourceToOutputMatrix (RectF rect)
+    {
+        Matrix matrix = new Matrix(sourceToOutput);
+        matrix.postTranslate(-rect.left * scale, -rect.top * scale);
+        return matrix;
+    }
+}
@@ -0,0 +1,168 @@
+package com.danstoakes.easycrop;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide store which hands cropped images from CropActivity to ViewActivity in memory. Each
+ * crop is kept under a token which is passed in the Intent, so the bitmap can be displayed directly
+ * rather than being encoded and decoded again. The crop is only encoded once it is shared or saved,
+ * and the encoded file is remembered so that it is only encoded once. The crops are pinned in the
+ * BitmapBudget while they are kept, and their encoded files are deleted once they are removed.
+ */
+public class CropResultStore
+{
+    private static CropResultStore instance;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private int nextToken;
+
+    /**
+     * Returns the store for the process, creating it when it is first needed.
+     * @return CropResultStore - the store for the process.
+     */
+    public static synchronized CropResultStore getInstance ()
+    {
+        if (instance == null)
+            instance = new CropResultStore();
+        return instance;
+    }
+
+    /**
+     * Keeps a cropped image until it is removed, counting it towards the budget in the meantime.
+     * @param bitmap - the cropped image, which the store takes ownership of.
+     * @param budget - the budget which the image is pinned in.
+     * @return String - the token to retrieve the image with.
+     */
+    public String put (Bitmap bitmap, BitmapBudget budget)
+    {
+        // the budget may evict other bitmaps to make room, so it is not called with the store locked
+        budget.pin(bitmap);
+        synchronized (this)
+        {
+            String token = "crop_" + nextToken++;
+            entries.put(token, new Entry(bitmap, budget));
+            return token;
+        }
+    }
+
+    /**
+     * Returns a cropped image.
+     * @param token - the token the image was kept under.
+     * @return Bitmap - the image, or null if there is none, e.g., because the process was restarted.
+     */
+    public synchronized Bitmap getBitmap (String token)
+    {
+        Entry entry = token != null ? entries.get(token) : null;
+        return entry != null ? entry.bitmap : null;
+    }
+
+    /**
+     * Records where a cropped image was encoded to, so that it is not encoded again.
+     * @param token - the token the image was kept under.
+     * @param uri - the uri the encoded file is shared through.
+     * @param result - the encoded file and its format.
+     */
+    public synchronized void setEncoded (String token, Uri uri, ImageExporter.Result result)
+    {
+        Entry entry = entries.get(token);
+        if (entry != null)
+        {
+            entry.encodedUri = uri;
+            entry.encoded = result;
+        }
+    }
+
+    /**
+     * Returns the uri a cropped image was encoded to.
+     * @param token - the token the image was kept under.
+     * @return Uri - the uri of the encoded image, or null if it has not been encoded.
+     */
+    public synchronized Uri getEncodedUri (String token)
+    {
+        Entry entry = token != null ? entries.get(token) : null;
+        return entry != null ? entry.encodedUri : null;
+    }
+
+    /**
+     * Returns the file a cropped image was encoded to.
+     * @param token - the token the image was kept under.
+     * @return File - the encoded image, or null if it has not been encoded.
+     */
+    public synchronized File getEncodedFile (String token)
+    {
+        Entry entry = token != null ? entries.get(token) : null;
+        return entry != null && entry.encoded != null ? entry.encoded.getFile() : null;
+    }
+
+    /**
+     * Returns the format a cropped image was encoded in.
+     * @param token - the token the image was kept under.
+     * @return int - the format, one of the ImageExporter formats, or 0 if it has not been encoded.
+     */
+    public synchronized int getFormat (String token)
+    {
+        Entry entry = token != null ? entries.get(token) : null;
+        return entry != null && entry.encoded != null ? entry.encoded.getFormat() : 0;
+    }
+
+    /**
+     * Returns the MIME type a cropped image was encoded as.
+     * @param token - the token the image was kept under.
+     * @return String - the MIME type of the encoded image, or null if it has not been encoded.
+     */
+    public synchronized String getMimeType (String token)
+    {
+        Entry entry = token != null ? entries.get(token) : null;
+        return entry != null && entry.encoded != null ? entry.encoded.getMimeType() : null;
+    }
+
+    /**
+     * Forgets a cropped image, handing ownership of its bitmap back to the caller, and deletes the
+     * file it was encoded to.
+     * @param token - the token the image was kept under.
+     * @return Bitmap - the image, or null if there was none.
+     */
+    public Bitmap remove (String token)
+    {
+        Entry entry;
+        synchronized (this)
+        {
+            entry = token != null ? entries.remove(token) : null;
+        }
+        if (entry == null)
+            return null;
+        entry.budget.unpin(entry.bitmap);
+        File file = entry.encoded != null ? entry.encoded.getFile() : null;
+        if (file != null && file.exists() && !file.delete())
+            Log.w("APP_ERROR", "The encoded image could not be removed: " + file);
+        return entry.bitmap;
+    }
+
+    /**
+     * A cropped image and where it has been encoded to, if anywhere.
+     */
+    private static class Entry
+    {
+        final Bitmap bitmap;
+        final BitmapBudget budget;
+        Uri encodedUri;
+        ImageExporter.Result encoded;
+
+        /**
+         * Constructor for the Entry class.
+         * @param bitmap - the cropped image.
+         * @param budget - the budget which the image is pinned in.
+         */
+        Entry (Bitmap bitmap, BitmapBudget budget)
+        {
+            this.bitmap = bitmap;
+            this.budget = budget;
+        }
+    }
+}
@@ -15,21 +15,46 @@ public class CropView extends View
     public static final int CROP_FREEHAND = 2;
     public static final int CROP_LASSO = 3;
 
-    private static final int BACKGROUND_COLOR = Color.WHITE;
     private static final int CROP_WIDTH = 5;
+    private static final float[] DASH_INTERVALS = {10, 20};
+    private static final float DASH_LENGTH = 30;
+    // the number of curves drawn live before they are baked into the overlay, which is what keeps
+    // the cost of each frame flat: a hardware canvas redraws the whole view, whatever was invalidated
+    private static final int SEGMENTS_PER_BAKE = 16;
+    // the largest bitmap a hardware canvas will draw, beyond which it throws
+    private static final int MAX_HARDWARE_BITMAP_BYTES = 100 * 1024 * 1024;
 
     private BitmapHandler bitmapHandler;
+    private FrameScheduler frameScheduler;
+    private final FrameScheduler.FrameListener redrawListener;
     private final FreehandCrop freehandCrop;
     private final RectangleCrop rectangleCrop;
 
-    private Canvas mCanvas;
     private final Paint mPaint;
     private final Paint mLassoPaint;
+    private final Paint mBitmapPaint;
+    private final Paint livePaint;
+    private final Paint overlayPaint;
+    private final Path livePath;
+    private final PathMeasure pathMeasure;
+    private Bitmap overlayBitmap;
+    private Canvas overlayCanvas;
+    private final Matrix displayMatrix;
+    private final Path rectanglePath;
 
     private boolean invalid;
+    private boolean batchChanged;
+    private boolean softwareFallback;
+    private int maxBitmapSize;
+    private float segmentX;
+    private float segmentY;
+    private int liveSegments;
+    private float dashPhase;
 
     private int bitmapTop;
     private int bitmapLeft;
+    private int bitmapWidth;
+    private int bitmapHeight;
     private int mCropType;
 
     /**
@@ -41,6 +66,10 @@ public class CropView extends View
     {
         super(context, attributeSet);
 
+        mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        displayMatrix = new Matrix();
+        rectanglePath = new Path();
+
         mLassoPaint = new Paint();
         mLassoPaint.setColor(Color.WHITE);
         mLassoPaint.setAlpha(80);
@@ -48,32 +77,59 @@ public class CropView extends View
         mPaint = new Paint();
         mPaint.setAntiAlias(true);
         mPaint.setDither(true);
-        mPaint.setColor(BACKGROUND_COLOR);
+        mPaint.setColor(Color.WHITE);
         mPaint.setStrokeWidth(CROP_WIDTH);
         mPaint.setStyle(Paint.Style.STROKE);
         mPaint.setStrokeJoin(Paint.Join.ROUND);
         mPaint.setStrokeCap(Paint.Cap.ROUND);
-        mPaint.setPathEffect(new DashPathEffect(new float[]{10, 20}, 0));
+        mPaint.setPathEffect(new DashPathEffect(DASH_INTERVALS, 0));
         mPaint.setXfermode(null);
         mPaint.setAlpha(0xff);
 
+        // the freehand path is drawn in two parts: the finished curves, baked into an alpha-only
+        // overlay which is tinted white when drawn, and the live curves, which carry on the dashes
+        livePaint = new Paint(mPaint);
+        overlayPaint = new Paint();
+        overlayPaint.setColor(Color.WHITE);
+        livePath = new Path();
+        pathMeasure = new PathMeasure();
+
         freehandCrop = new FreehandCrop();
         rectangleCrop = new RectangleCrop();
+
+        redrawListener = new FrameScheduler.FrameListener()
+        {
+            /**
+             * Invalidates the view once for everything which was changed since the last frame.
+             * @param frameTimeNanos - the time at which the frame started rendering.
+             */
+            @Override
+            public void onFrame(long frameTimeNanos)
+            {
+                invalidate();
+            }
+        };
     }
 
     /**
-     * Secondary constructor which handles the loading of the bitmap and canvas.
-     * @param width - the width of the activity window.
-     * @param height - the height of the activity window.
+     * Secondary constructor which sets the BitmapHandler holding the bitmap to be displayed.
+     * @param bitmapHandler - the handler holding the bitmap.
+     * @param frameScheduler - the scheduler which redraws are coalesced into, once per frame.
      */
-    public void initialise(int width, int height, BitmapHandler bitmapHandler)
+    public void initialise(BitmapHandler bitmapHandler, FrameScheduler frameScheduler)
     {
-        // set the BitmapHandler, scaled bitmap, and canvas.
+        // the view is drawn by the GPU unless a bitmap turns out to be too large for it
         this.bitmapHandler = bitmapHandler;
-        bitmapHandler.setScaledBitmap(Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565));
-        mCanvas = new Canvas(bitmapHandler.getScaledBitmap());
+        this.frameScheduler = frameScheduler;
+    }
 
-        setLayerType(LAYER_TYPE_SOFTWARE, null);
+    /**
+     * Asks for the view to be redrawn at the next frame. Requests made within the same frame are
+     * combined into one redraw.
+     */
+    private void requestRedraw ()
+    {
+        frameScheduler.schedule(redrawListener);
     }
 
     /**
@@ -84,7 +140,80 @@ public class CropView extends View
     {
         // set the scaled bitmap and call for a canvas reload
         bitmapHandler.setScaledBitmap(bitmap);
-        invalidate();
+        if (bitmap != null)
+            updateDisplayMatrix();
+        // return to hardware rendering if the bitmap which needed software rendering has been replaced
+        if (softwareFallback && bitmap != null && !needsSoftwareLayer(bitmap))
+        {
+            softwareFallback = false;
+            setLayerType(LAYER_TYPE_NONE, null);
+        }
+        requestRedraw();
+    }
+
+    /**
+     * Returns whether a bitmap is too large to be drawn by a hardware canvas, either in bytes or
+     * in its dimensions (which are only known once a hardware canvas has been drawn on).
+     * @param bitmap - the bitmap to be drawn.
+     * @return boolean - whether the view has to be drawn in software.
+     */
+    private boolean needsSoftwareLayer (Bitmap bitmap)
+    {
+        if (bitmap.getByteCount() > MAX_HARDWARE_BITMAP_BYTES)
+            return true;
+        return maxBitmapSize > 0 && (bitmap.getWidth() > maxBitmapSize || bitmap.getHeight() > maxBitmapSize);
+    }
+
+    /**
+     * Allocates the overlay which finished freehand curves are baked into, at the size of the view.
+     * @param width - the new width of the view.
+     * @param height - the new height of the view.
+     * @param oldWidth - the previous width of the view.
+     * @param oldHeight - the previous height of the view.
+     */
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight)
+    {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        releaseOverlay();
+        if (width > 0 && height > 0)
+        {
+            // the overlay is needed for as long as the view is shown, so it is pinned in the budget
+            overlayBitmap = BitmapPool.getInstance().get(width, height, Bitmap.Config.ALPHA_8);
+            bitmapHandler.getBudget().pin(overlayBitmap);
+            overlayCanvas = new Canvas(overlayBitmap);
+            // the baked curves are lost, so redraw the whole path as it stands
+            if (freehandCrop.hasStroke())
+                overlayCanvas.drawPath(freehandCrop.getPath(), mPaint);
+        }
+        resetLivePath();
+        // the bitmap is fitted to the view, so it moves with the size of the view
+        if (bitmapHandler.getScaledBitmap() != null)
+            updateDisplayMatrix();
+    }
+
+    /**
+     * Returns the overlay to the pool once the view has been removed from its window.
+     */
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        super.onDetachedFromWindow();
+        releaseOverlay();
+    }
+
+    /**
+     * Unpins the overlay and returns it to the pool.
+     */
+    private void releaseOverlay ()
+    {
+        if (overlayBitmap != null)
+        {
+            bitmapHandler.getBudget().unpin(overlayBitmap);
+            BitmapPool.getInstance().put(overlayBitmap);
+        }
+        overlayBitmap = null;
+        overlayCanvas = null;
     }
 
     /**
@@ -124,20 +253,7 @@ public class CropView extends View
      */
     public boolean hasPath ()
     {
-        return freehandCrop.getCropPath() != null;
-    }
-
-    /**
-     * Clears the loaded bitmap.
-     */
-    public void clearBitmap()
-    {
-        // remove the bitmap and drawn crop paths
-        bitmapHandler.setScaledBitmap(null);
-        freehandCrop.clearPathsList();
-        // draw the background colour
-        mCanvas.drawColor(BACKGROUND_COLOR);
-        invalidate();
+        return freehandCrop.hasStroke() || rectangleCrop.getWidth() > 0 || rectangleCrop.getHeight() > 0;
     }
 
     /**
@@ -146,96 +262,118 @@ public class CropView extends View
     public void clearCanvas()
     {
         // clear the Freehand and Rectangle crop paths
-        freehandCrop.clearPathsList();
-        freehandCrop.emptyPaths();
+        freehandCrop.clear();
         rectangleCrop.clearValues();
-        // draw the background colour
-        mCanvas.drawColor(BACKGROUND_COLOR);
-        invalidate();
+        if (overlayBitmap != null)
+            overlayBitmap.eraseColor(0);
+        resetLivePath();
+        requestRedraw();
     }
 
     /**
      * Mirrors the bitmap in either the x or y axis depending on the image orientation.
-     * @param width - the width of the image.
-     * @param height - the height of the image.
      */
-    public void flipBitmap (int width, int height)
+    public void flipBitmap ()
+    {
+        // mirror in x if the displayed image is portrait, and in y if it is landscape
+        flipBitmap(BitmapHandler.getDefaultFlipAxis(bitmapWidth, bitmapHeight));
+    }
+
+    /**
+     * Mirrors the bitmap in an axis.
+     * @param axis - the axis to mirror in, either RasterOps.FLIP_HORIZONTAL or RasterOps.FLIP_VERTICAL.
+     */
+    public void flipBitmap (int axis)
     {
-        // clear the bitmap and the canvas
-        clearBitmap();
+        // clear the canvas of any crop paths, which no longer match the image
         clearCanvas();
-        // flip the unscaled bitmap
-        Bitmap flippedBitmap = BitmapHandler.flipBitmap(bitmapHandler.getUnscaledBitmap());
-        bitmapHandler.setUnscaledBitmap(flippedBitmap);
-        // scale the bitmap and set it on the canvas
-        Bitmap scaledBitmap = BitmapHandler.getAsScaledBitmap(flippedBitmap, width, height);
-        setBitmap(scaledBitmap);
+        bitmapHandler.getTransform().flip(axis);
+        // the flip is applied when the bitmap is drawn, so only the display needs updating
+        updateDisplayMatrix();
+        requestRedraw();
     }
 
     /**
      * Rotates the bitmap 90 degrees clockwise.
-     * @param width - the width of the image.
-     * @param height - the height of the image.
      */
-    public void rotateBitmap (int width, int height)
+    public void rotateBitmap ()
     {
-        // clear the bitmap and the canvas
-        clearBitmap();
+        // clear the canvas of any crop paths, which no longer match the image
         clearCanvas();
-        // rotate the unscaled bitmap
-        Bitmap rotatedBitmap = BitmapHandler.rotateBitmap(bitmapHandler.getUnscaledBitmap());
-        bitmapHandler.setUnscaledBitmap(rotatedBitmap);
-        // scale the bitmap and set it on the canvas
-        Bitmap scaledBitmap = BitmapHandler.getAsScaledBitmap(
-                rotatedBitmap, width, height);
-        setBitmap(scaledBitmap);
+        // the rotation is applied when the bitmap is drawn, so only the display needs updating
+        bitmapHandler.getTransform().rotate();
+        updateDisplayMatrix();
+        requestRedraw();
     }
 
     /**
-     * Crop the bitmap using the RectangleCrop class.
-     * @return Bitmap - the cropped bitmap.
+     * Fits the transformed bitmap within the view, updating its position, size, and the
+     * matrix it is drawn with. This is only needed when the bitmap, its transform or the size of
+     * the view changes, so the matrix is kept between frames rather than built for each one.
      */
-    public Bitmap cropBitmap ()
+    private void updateDisplayMatrix ()
     {
-        try
-        {
-            // crop the bitmap using the left, top, width, and height coordinates
-            return Bitmap.createBitmap(bitmapHandler.getScaledBitmap(),
-                    (int) rectangleCrop.getLeft() - bitmapLeft, (int) rectangleCrop.getTop() - bitmapTop,
-                    (int) rectangleCrop.getWidth(), (int) rectangleCrop.getHeight());
-        } catch (IllegalArgumentException e)
-        {
-            return null;
-        }
+        Bitmap bitmap = bitmapHandler.getScaledBitmap();
+        ImageTransform transform = bitmapHandler.getTransform();
+        int width = transform.getWidth(bitmap.getWidth(), bitmap.getHeight());
+        int height = transform.getHeight(bitmap.getWidth(), bitmap.getHeight());
+        // calculate the ratio between the transformed bitmap and the view, unless it is yet to be laid out
+        float ratio = 1;
+        if (getWidth() > 0 && getHeight() > 0)
+            ratio = Math.min((float) getWidth() / width, (float) getHeight() / height);
+        // set the size, and the left and top coordinates for the bitmap (i.e., with scaling)
+        bitmapWidth = Math.round(width * ratio);
+        bitmapHeight = Math.round(height * ratio);
+        bitmapLeft = Math.abs(getWidth() - bitmapWidth) / 2;
+        bitmapTop = Math.abs(getHeight() - bitmapHeight) / 2;
+        // rotate/flip the bitmap, then scale and position it within the view
+        displayMatrix.set(transform.getMatrix(bitmap.getWidth(), bitmap.getHeight()));
+        displayMatrix.postScale((float) bitmapWidth / width, (float) bitmapHeight / height);
+        displayMatrix.postTranslate(bitmapLeft, bitmapTop);
+    }
+
+    /**
+     * Crop the bitmap using the RectangleCrop class. The crop is decoded in the background.
+     * @param bitmapCropper - the cropper which decodes the crop.
+     * @param listener - the listener which receives the cropped bitmap.
+     * @return boolean - whether there was an area to crop, in which case the listener will be called.
+     */
+    public boolean cropBitmap (BitmapCropper bitmapCropper, BitmapCropper.BitmapCropListener listener)
+    {
+        // get the rectangle relative to the displayed bitmap and keep it within the bitmap
+        RectF bounds = new RectF(
+                rectangleCrop.getLeft() - bitmapLeft, rectangleCrop.getTop() - bitmapTop,
+                rectangleCrop.getRight() - bitmapLeft, rectangleCrop.getBottom() - bitmapTop);
+        if (!bounds.intersect(0, 0, bitmapWidth, bitmapHeight))
+            return false;
+        // crop the source pixels which lie within the rectangle at full resolution
+        bitmapCropper.crop(bitmapHandler, bitmapHandler.getCropMapper(bitmapWidth, bitmapHeight), bounds,
+                null, 0, listener);
+        return true;
     }
 
     /**
-     * Crop the bitmap using the FreehandCrop class.
-     * @return Bitmap - the cropped bitmap.
+     * Crop the bitmap using the FreehandCrop class. The crop is decoded in the background.
+     * @param bitmapCropper - the cropper which decodes the crop.
+     * @param listener - the listener which receives the cropped bitmap.
+     * @return boolean - whether there was an area to crop, in which case the listener will be called.
      */
-    public Bitmap cropBitmapFreehand (int width, int height)
+    public boolean cropBitmapFreehand (BitmapCropper bitmapCropper, BitmapCropper.BitmapCropListener listener)
     {
-        // get the path and return null if it hasn't been drawn
-        Path path = freehandCrop.getCropPath();
-        if (path == null)
-            return null;
-        // clone the existing unscaled bitmap and create a new canvas with it
-        Bitmap bitmap = Bitmap.createBitmap(getWidth(), getHeight(), bitmapHandler.getUnscaledBitmap().getConfig());
-        Canvas canvas = new Canvas(bitmap);
-        // get the Bitmap as a scaled representation
-        Bitmap scaledBitmap = BitmapHandler.getAsScaledBitmap(bitmap, getWidth(), getHeight());
-        // draw the crop path on the canvas
-        Paint paint = new Paint();
-        canvas.drawPath(path, paint);
-        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
-        canvas.drawBitmap(scaledBitmap, 0, 0, paint);
-        // crop the region of the bitmap
-        Region region = new Region();
-        Region clip = new Region(0, 0, bitmap.getWidth(), bitmap.getHeight());
-        region.setPath(path, clip);
-        Rect bounds = region.getBounds();
-        // return the cropped bitmap
-        return Bitmap.createBitmap(bitmap, bounds.left, bounds.top, bounds.width(), bounds.height());
+        // get the polygon and return if it hasn't been drawn
+        float[] polygon = freehandCrop.getCropPolygon(-bitmapLeft, -bitmapTop);
+        if (polygon == null)
+            return false;
+        // get the bounds of the polygon, which is relative to the displayed bitmap, within the bitmap
+        RectF bounds = new RectF(polygon[0], polygon[1], polygon[0], polygon[1]);
+        for (int i = 2; i < polygon.length; i += 2)
+            bounds.union(polygon[i], polygon[i + 1]);
+        if (!bounds.intersect(0, 0, bitmapWidth, bitmapHeight))
+            return false;
+        // crop the source pixels which lie within the polygon at full resolution
+        bitmapCropper.crop(bitmapHandler, bitmapHandler.getCropMapper(bitmapWidth, bitmapHeight), bounds,
+                polygon, polygon.length / 2, listener);
+        return true;
     }
 
     /**
@@ -244,6 +382,19 @@ public class CropView extends View
      */
     public void handleMotion (MotionEvent event)
     {
+        if (event.getAction() == MotionEvent.ACTION_MOVE)
+        {
+            // the platform batches the samples since the last frame into one move event, so replay
+            // every one of them and then redraw once
+            batchChanged = false;
+            int historySize = event.getHistorySize();
+            for (int i = 0; i < historySize; i++)
+                handleMove(event.getHistoricalX(i), event.getHistoricalY(i));
+            handleMove(event.getX(), event.getY());
+            if (batchChanged)
+                requestRedraw();
+            return;
+        }
         float x = event.getX();
         float y = event.getY();
         // perform a crop depending on the crop type.
@@ -270,7 +421,7 @@ public class CropView extends View
             case MotionEvent.ACTION_DOWN:
                 // the user is pressing down on the canvas
                 touchStartRectangle(x, y);
-                invalidate();
+                requestRedraw();
                 break;
             case MotionEvent.ACTION_UP:
                 // the user is moving while pressing down on the canvas
@@ -280,12 +431,7 @@ public class CropView extends View
                 } else {
                     invalid = false;
                 }
-                invalidate();
-                break;
-            case MotionEvent.ACTION_MOVE:
-                // the user has lifted up after pressing down on the canvas
-                touchMoveRectangle(x, y);
-                invalidate();
+                requestRedraw();
                 break;
         }
     }
@@ -304,21 +450,34 @@ public class CropView extends View
             case MotionEvent.ACTION_DOWN:
                 // the user is pressing down on the canvas
                 touchStart(x, y);
-                invalidate();
+                requestRedraw();
                 break;
             case MotionEvent.ACTION_UP:
                 // the user is moving while pressing down on the canvas
                 touchUp();
-                invalidate();
-                break;
-            case MotionEvent.ACTION_MOVE:
-                // the user has lifted up after pressing down on the canvas
-                touchMove(x, y);
-                invalidate();
+                requestRedraw();
                 break;
         }
     }
 
+    /**
+     * Handle a single touch sample while the user is moving, noting whether it changed the crop.
+     * @param x - the x-ordinate of the touch.
+     * @param y - the y-ordinate of the touch.
+     */
+    private void handleMove (float x, float y)
+    {
+        if (mCropType == CROP_CLASSIC)
+        {
+            touchMoveRectangle(x, y);
+            batchChanged = true;
+        } else if (mCropType == CROP_FREEHAND || mCropType == CROP_LASSO)
+        {
+            if (touchMove(x, y))
+                batchChanged = true;
+        }
+    }
+
     /**
      * Returns whether a coordinate is within the bounds of the scaled bitmap.
      * @param x - the x-ordinate of the touch.
@@ -327,10 +486,8 @@ public class CropView extends View
      */
     private boolean isWithinBitmap (float x, float y)
     {
-        int width = bitmapHandler.getScaledBitmap().getWidth();
-        int height = bitmapHandler.getScaledBitmap().getHeight();
         // determine if the coordinates are within the bitmap
-        return y > bitmapTop && y < (bitmapTop + height) && x > bitmapLeft && x < (bitmapLeft + width);
+        return y > bitmapTop && y < (bitmapTop + bitmapHeight) && x > bitmapLeft && x < (bitmapLeft + bitmapWidth);
     }
 
     /**
@@ -344,15 +501,13 @@ public class CropView extends View
         {
             // clear the canvas of existing paths and generate a new path
             clearCanvas();
-            freehandCrop.createPaths();
-            freehandCrop.addDrawPath(new DrawPath(Color.WHITE, 5, freehandCrop.getPath()));
-            // start drawing the crop path at the coordinate
-            freehandCrop.resetPaths();
-            freehandCrop.pathMoveTo(x, y);
-            freehandCrop.cropPathMoveTo(x - bitmapLeft, y - bitmapTop);
+            // start recording the crop stroke at the coordinate
+            freehandCrop.start(x, y);
             // set the coordinates to be used in touchMove/touchUp
             freehandCrop.setXYCoordinates(x, y);
-            freehandCrop.setStartCoordinates(new Point((int) x, (int) y));
+            segmentX = x;
+            segmentY = y;
+            livePath.moveTo(x, y);
         } else
         {
             invalid = true;
@@ -368,8 +523,6 @@ public class CropView extends View
     {
         if (isWithinBitmap(x, y))
         {
-            // create an artificial path which will work with hasPath() for correct back press functionality
-            freehandCrop.createCropPath();
             // set the start and end coordinates
             rectangleCrop.setStartCoordinates(x, y);
             if (rectangleCrop.getEndX() == 0 || rectangleCrop.getEndY() == 0)
@@ -384,8 +537,9 @@ public class CropView extends View
      * Handle the movement performed after the first touch.
      * @param x - the x-ordinate of the touch.
      * @param y - the y-ordinate of the touch.
+     * @return boolean - whether a segment was added to the path.
      */
-    private void touchMove (float x, float y)
+    private boolean touchMove (float x, float y)
     {
         float oldX = freehandCrop.getX();
         float oldY = freehandCrop.getY();
@@ -395,32 +549,85 @@ public class CropView extends View
             if (isWithinBitmap(x, y))
             {
                 // move the crop path and update the coordinates
-                freehandCrop.pathQuadTo(oldX, oldY, (x + oldX) / 2, (y + oldY) / 2);
-                freehandCrop.cropPathQuadTo(oldX - bitmapLeft, oldY - bitmapTop,
-                        ((x + oldX) / 2) - bitmapLeft, ((y + oldY) / 2) - bitmapTop);
+                addSegment(oldX, oldY, (x + oldX) / 2, (y + oldY) / 2);
                 freehandCrop.setXYCoordinates(x, y);
+                return true;
             } else
             {
                 // move the crop path such that it matches with the edge of the bitmap
                 if (y < bitmapTop)
                 {
-                    freehandCrop.pathQuadTo(oldX, oldY, (x + oldX) / 2, bitmapTop);
+                    addSegment(oldX, oldY, (x + oldX) / 2, bitmapTop);
                     freehandCrop.setXYCoordinates(x, bitmapTop);
-                } else if (y > (bitmapTop + bitmapHandler.getScaledBitmap().getHeight()))
+                    return true;
+                } else if (y > (bitmapTop + bitmapHeight))
                 {
-                    freehandCrop.pathQuadTo(oldX, oldY, (x + oldX) / 2, (bitmapTop + bitmapHandler.getScaledBitmap().getHeight()));
-                    freehandCrop.setXYCoordinates(x, bitmapTop + bitmapHandler.getScaledBitmap().getHeight());
+                    addSegment(oldX, oldY, (x + oldX) / 2, (bitmapTop + bitmapHeight));
+                    freehandCrop.setXYCoordinates(x, bitmapTop + bitmapHeight);
+                    return true;
                 } else if (x < bitmapLeft)
                 {
-                    freehandCrop.pathQuadTo(oldX, oldY, bitmapLeft, (y + oldY) / 2);
+                    addSegment(oldX, oldY, bitmapLeft, (y + oldY) / 2);
                     freehandCrop.setXYCoordinates(bitmapLeft, y);
-                } else if (x > (bitmapLeft + bitmapHandler.getScaledBitmap().getWidth()))
+                    return true;
+                } else if (x > (bitmapLeft + bitmapWidth))
                 {
-                    freehandCrop.pathQuadTo(oldX, oldY, (bitmapLeft + bitmapHandler.getScaledBitmap().getWidth()), (y + oldY) / 2);
-                    freehandCrop.setXYCoordinates(bitmapLeft + bitmapHandler.getScaledBitmap().getWidth(), y);
+                    addSegment(oldX, oldY, (bitmapLeft + bitmapWidth), (y + oldY) / 2);
+                    freehandCrop.setXYCoordinates(bitmapLeft + bitmapWidth, y);
+                    return true;
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * Adds a curve to the crop stroke from the end of the previous curve.
+     * @param controlX - the x-ordinate of the control point.
+     * @param controlY - the y-ordinate of the control point.
+     * @param endX - the x-ordinate of the end of the curve.
+     * @param endY - the y-ordinate of the end of the curve.
+     */
+    private void addSegment (float controlX, float controlY, float endX, float endY)
+    {
+        freehandCrop.quadTo(controlX, controlY, endX, endY);
+        segmentX = endX;
+        segmentY = endY;
+        // bake the live curves once there are enough of them, so that each frame draws a bounded amount
+        livePath.quadTo(controlX, controlY, endX, endY);
+        if (++liveSegments >= SEGMENTS_PER_BAKE)
+            bakeLivePath();
+    }
+
+    /**
+     * Draws the live curves into the overlay and starts a new live path from where they end. The
+     * dashes of the next live path start where those of the baked curves stopped.
+     */
+    private void bakeLivePath ()
+    {
+        if (overlayCanvas != null)
+            overlayCanvas.drawPath(livePath, livePaint);
+        // add up the length of the baked curves to find where the dash pattern has reached
+        pathMeasure.setPath(livePath, false);
+        do
+        {
+            dashPhase = (dashPhase + pathMeasure.getLength()) % DASH_LENGTH;
+        } while (pathMeasure.nextContour());
+        livePaint.setPathEffect(new DashPathEffect(DASH_INTERVALS, dashPhase));
+        livePath.rewind();
+        livePath.moveTo(segmentX, segmentY);
+        liveSegments = 0;
+    }
+
+    /**
+     * Empties the live path and restarts the dash pattern.
+     */
+    private void resetLivePath ()
+    {
+        livePath.rewind();
+        liveSegments = 0;
+        dashPhase = 0;
+        livePaint.setPathEffect(mPaint.getPathEffect());
     }
 
     /**
@@ -445,15 +652,15 @@ public class CropView extends View
                     if (y < bitmapTop)
                     {
                         rectangleCrop.setEndCoordinates(x, bitmapTop);
-                    } else if (y > (bitmapTop + bitmapHandler.getScaledBitmap().getHeight()))
+                    } else if (y > (bitmapTop + bitmapHeight))
                     {
-                        rectangleCrop.setEndCoordinates(x, bitmapTop + bitmapHandler.getScaledBitmap().getHeight());
+                        rectangleCrop.setEndCoordinates(x, bitmapTop + bitmapHeight);
                     } else if (x < bitmapLeft)
                     {
                         rectangleCrop.setEndCoordinates(bitmapLeft, y);
-                    } else if (x > (bitmapLeft + bitmapHandler.getScaledBitmap().getWidth()))
+                    } else if (x > (bitmapLeft + bitmapWidth))
                     {
-                        rectangleCrop.setEndCoordinates(bitmapLeft + bitmapHandler.getScaledBitmap().getWidth(), y);
+                        rectangleCrop.setEndCoordinates(bitmapLeft + bitmapWidth, y);
                     }
                 }
             }
@@ -467,17 +674,16 @@ public class CropView extends View
     {
         if (!invalid)
         {
-            // draw the path line to the most recent coordinate
-            freehandCrop.pathLineTo(freehandCrop.getX(), freehandCrop.getY());
-            freehandCrop.cropPathLineTo(freehandCrop.getX() - bitmapLeft, freehandCrop.getY() - bitmapTop);
-            freehandCrop.setEndCoordinates(new Point((int) freehandCrop.getX(), (int) freehandCrop.getY()));
-            // add the path to the list
-            freehandCrop.addDrawPath(new DrawPath(Color.WHITE, 5, freehandCrop.getPath()));
-            // draw the path line and the adjusted crop line
-            freehandCrop.pathMoveTo(freehandCrop.getStart().x, freehandCrop.getStart().y);
-            freehandCrop.cropPathMoveTo(freehandCrop.getStart().x, freehandCrop.getStart().y - bitmapTop);
-            freehandCrop.pathLineTo(freehandCrop.getEnd().x, freehandCrop.getEnd().y);
-            freehandCrop.cropPathLineTo(freehandCrop.getEnd().x, freehandCrop.getEnd().y - bitmapTop);
+            // finish the stroke at the most recent coordinate, joining it back to the start
+            freehandCrop.finish();
+            // bake the rest of the outline, then the closing line, whose dashes start afresh
+            livePath.lineTo(freehandCrop.getX(), freehandCrop.getY());
+            bakeLivePath();
+            resetLivePath();
+            livePath.moveTo(freehandCrop.getStartX(), freehandCrop.getStartY());
+            livePath.lineTo(freehandCrop.getEndX(), freehandCrop.getEndY());
+            bakeLivePath();
+            resetLivePath();
         }
         invalid = false;
     }
@@ -489,45 +695,62 @@ public class CropView extends View
     @Override
     protected void onDraw(Canvas canvas)
     {
+        long start = System.nanoTime();
         // save the canvas and draw the transparent layer
         canvas.save();
         canvas.drawColor(0x00AAAAAA);
 
-        if (bitmapHandler.getScaledBitmap() != null)
+        Bitmap bitmap = bitmapHandler.getScaledBitmap();
+        if (bitmap != null && canvas.isHardwareAccelerated())
+        {
+            // fall back to software rendering for bitmaps which the GPU cannot draw
+            maxBitmapSize = Math.min(canvas.getMaximumBitmapWidth(), canvas.getMaximumBitmapHeight());
+            if (needsSoftwareLayer(bitmap))
+            {
+                softwareFallback = true;
+                post(new Runnable()
+                {
+                    /**
+                     * Switches to a software layer outside of the draw pass, which redraws the view.
+                     */
+                    @Override
+                    public void run()
+                    {
+                        setLayerType(LAYER_TYPE_SOFTWARE, null);
+                    }
+                });
+                bitmap = null;
+            }
+        }
+
+        if (bitmap != null)
         {
-            mCanvas = canvas;
-            // set the left and top coordinates for the bitmap (i.e., with scaling)
-            bitmapTop = Math.abs(getHeight() - bitmapHandler.getScaledBitmap().getHeight()) / 2;
-            bitmapLeft = Math.abs(getWidth() - bitmapHandler.getScaledBitmap().getWidth()) / 2;
-            // draw the scaled bitmap
-            canvas.drawBitmap(bitmapHandler.getScaledBitmap(), bitmapLeft, bitmapTop, mPaint);
+            // draw the scaled bitmap, rotated/flipped and positioned within the view
+            canvas.drawBitmap(bitmap, displayMatrix, mBitmapPaint);
         }
 
         if (mCropType == 1)
         {
-            // draw the crop rectangle
-            canvas.drawRect(rectangleCrop.getLeft(), rectangleCrop.getTop(), rectangleCrop.getRight(),
-                    rectangleCrop.getBottom(), mPaint);
+            // draw the crop rectangle as a path, as the GPU only dashes the outlines of paths
+            rectanglePath.rewind();
+            rectanglePath.addRect(rectangleCrop.getLeft(), rectangleCrop.getTop(), rectangleCrop.getRight(),
+                    rectangleCrop.getBottom(), Path.Direction.CW);
+            canvas.drawPath(rectanglePath, mPaint);
+        } else if (mCropType == CROP_LASSO)
+        {
+            // the filled lasso is closed back to its start, so it changes as a whole and is drawn in full
+            if (freehandCrop.hasStroke())
+                canvas.drawPath(freehandCrop.getPath(), mLassoPaint);
         } else
         {
-            // loop through the paths which hold the crop drawing information
-            for (DrawPath draw : freehandCrop.getPathsList())
-            {
-                // set the paint information
-                mPaint.setStrokeWidth(draw.getWidth());
-                mPaint.setMaskFilter(null);
-                mPaint.setColor(draw.getColour());
-                mPaint.setColorFilter(null);
-                // set the paint object to be used depending on the crop method
-                if (mCropType == CROP_LASSO)
-                {
-                    canvas.drawPath(draw.getPath(), mLassoPaint);
-                } else
-                {
-                    canvas.drawPath(draw.getPath(), mPaint);
-                }
-            }
+            // composite the finished curves, then draw only the live ones
+            if (overlayBitmap != null)
+                canvas.drawBitmap(overlayBitmap, 0, 0, overlayPaint);
+            canvas.drawPath(livePath, livePaint);
         }
         canvas.restore();
+        // record the draw against the frame budget
+        if (frameScheduler != null)
+            frameScheduler.recordDraw(System.nanoTime() - start);
     }
 }
\ No newline at end of file
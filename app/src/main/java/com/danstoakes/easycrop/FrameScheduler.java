@@ -0,0 +1,164 @@
+package com.danstoakes.easycrop;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Class which gathers changes requested between frames, e.g., by touch events, and commits each of
+ * them once at the start of the next frame. It also records how long frames take to commit and draw
+ * against the frame budget of the display, so that slow frames can be spotted. Must be used on the
+ * main thread.
+ */
+public class FrameScheduler implements Choreographer.FrameCallback
+{
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final double NANOS_PER_MILLISECOND = 1000000.0;
+
+    private final Choreographer choreographer;
+    private final long frameBudgetNanos;
+    private final ArrayList<FrameListener> pending = new ArrayList<>();
+    private final ArrayList<FrameListener> committing = new ArrayList<>();
+    private boolean scheduled;
+    private long requestTimeNanos;
+
+    private int frameCount;
+    private int missedFrameCount;
+    private long totalCommitNanos;
+    private long maxCommitNanos;
+    private int drawCount;
+    private int slowDrawCount;
+    private long totalDrawNanos;
+    private long maxDrawNanos;
+
+    /**
+     * Interface for the changes which are committed once per frame.
+     */
+    public interface FrameListener
+    {
+        void onFrame (long frameTimeNanos);
+    }
+
+    /**
+     * Constructor for the FrameScheduler class.
+     * @param refreshRate - the refresh rate of the display in frames per second, which sets the budget of each frame.
+     */
+    public FrameScheduler (float refreshRate)
+    {
+        choreographer = Choreographer.getInstance();
+        frameBudgetNanos = (long) (NANOS_PER_SECOND / (refreshRate > 0 ? refreshRate : 60));
+    }
+
+    /**
+     * Asks for a listener to be called at the start of the next frame. A listener which is already
+     * waiting for the next frame is only called once.
+     * @param listener - the listener which commits the change.
+     */
+    public void schedule (FrameListener listener)
+    {
+        if (!pending.contains(listener))
+            pending.add(listener);
+        if (!scheduled)
+        {
+            scheduled = true;
+            requestTimeNanos = System.nanoTime();
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drops every change which is waiting for the next frame.
+     */
+    public void cancel ()
+    {
+        pending.clear();
+        if (scheduled)
+        {
+            scheduled = false;
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    /**
+     * Commits the changes which were requested since the last frame.
+     * @param frameTimeNanos - the time at which the frame started rendering.
+     */
+    @Override
+    public void doFrame (long frameTimeNanos)
+    {
+        scheduled = false;
+        long start = System.nanoTime();
+        // a frame which starts more than a budget after the request means a vsync was missed
+        if (frameTimeNanos > requestTimeNanos)
+            missedFrameCount += (int) ((frameTimeNanos - requestTimeNanos) / frameBudgetNanos);
+        // listeners may schedule again for the following frame while they are being committed
+        committing.addAll(pending);
+        pending.clear();
+        for (int i = 0; i < committing.size(); i++)
+            committing.get(i).onFrame(frameTimeNanos);
+        committing.clear();
+
+        long commitNanos = System.nanoTime() - start;
+        frameCount++;
+        totalCommitNanos += commitNanos;
+        maxCommitNanos = Math.max(maxCommitNanos, commitNanos);
+    }
+
+    /**
+     * Records how long a view took to draw a frame.
+     * @param drawNanos - the time taken to draw.
+     */
+    public void recordDraw (long drawNanos)
+    {
+        drawCount++;
+        totalDrawNanos += drawNanos;
+        maxDrawNanos = Math.max(maxDrawNanos, drawNanos);
+        if (drawNanos > frameBudgetNanos)
+            slowDrawCount++;
+    }
+
+    /**
+     * Returns the time each frame has to commit and draw in.
+     * @return long - the frame budget in nanoseconds.
+     */
+    public long getFrameBudgetNanos ()
+    {
+        return frameBudgetNanos;
+    }
+
+    /**
+     * Returns the number of vsyncs which passed between a change being requested and its frame.
+     * @return int - the number of missed frames.
+     */
+    public int getMissedFrameCount ()
+    {
+        return missedFrameCount;
+    }
+
+    /**
+     * Returns the number of draws which took longer than the frame budget.
+     * @return int - the number of slow draws.
+     */
+    public int getSlowDrawCount ()
+    {
+        return slowDrawCount;
+    }
+
+    /**
+     * Returns a summary of the frame timings, for logging.
+     * @return String - the commit and draw times against the frame budget.
+     */
+    @Override
+    public String toString ()
+    {
+        return String.format(Locale.US,
+                "budget %.1fms, %d frames (commit avg %.2fms, max %.2fms, %d missed), "
+                        + "%d draws (avg %.2fms, max %.2fms, %d over budget)",
+                frameBudgetNanos / NANOS_PER_MILLISECOND, frameCount,
+                frameCount == 0 ? 0 : totalCommitNanos / NANOS_PER_MILLISECOND / frameCount,
+                maxCommitNanos / NANOS_PER_MILLISECOND, missedFrameCount, drawCount,
+                drawCount == 0 ? 0 : totalDrawNanos / NANOS_PER_MILLISECOND / drawCount,
+                maxDrawNanos / NANOS_PER_MILLISECOND, slowDrawCount);
+    }
+}
@@ -1,33 +1,52 @@
 package com.danstoakes.easycrop;
 
 import android.graphics.Path;
-import android.graphics.Point;
 
-import java.util.ArrayList;
+import com.danstoakes.easycrop.raster.PolylineSimplifier;
 
 /**
  * Helper class which holds the values and methods for any cropping completed
- * using the Freehand crop type.
+ * using the Freehand crop type. The stroke is simplified as it is drawn: each curve is recorded as
+ * its middle and end points, and a PolylineSimplifier keeps only the vertices needed to stay within
+ * a pixel tolerance of them, up to a limit. The polygon which is cropped with, and the path which
+ * fills the lasso, are built from the simplified stroke, so their cost does not grow with the length
+ * of the stroke. The freehand outline is not: CropView draws it from the raw curves as they arrive,
+ * baking the finished ones into its overlay.
  */
 public class FreehandCrop
 {
-    private float x, y;
+    // the furthest the simplified stroke may stray from the drawn one, in pixels of the view
+    private static final float DEFAULT_TOLERANCE = 1;
+    private static final int DEFAULT_MAX_VERTICES = 512;
 
-    private Point start;
-    private Point end;
+    private float x, y;
 
-    private Path path;
-    private Path cropPath;
+    private final PolylineSimplifier simplifier;
+    private float lastX, lastY;
+    private boolean finished;
+    private float endX, endY;
 
-    private final ArrayList<DrawPath> paths;
+    private final Path path;
+    // the stroke changes whenever a point is added, so the path is rebuilt when it is next requested
+    private boolean pathChanged;
 
     /**
      * Constructor for the FreehandCrop class.
      */
     public FreehandCrop ()
     {
-        // initialise the list of paths
-        paths = new ArrayList<>();
+        this(DEFAULT_TOLERANCE, DEFAULT_MAX_VERTICES);
+    }
+
+    /**
+     * Constructor for the FreehandCrop class with a given simplification.
+     * @param tolerance - the furthest, in pixels, the simplified stroke may lie from the drawn one.
+     * @param maxVertices - the most vertices the simplified stroke may have.
+     */
+    public FreehandCrop (float tolerance, int maxVertices)
+    {
+        simplifier = new PolylineSimplifier(tolerance, maxVertices);
+        path = new Path();
     }
 
     /**
@@ -41,33 +60,6 @@ public class FreehandCrop
         this.y = y;
     }
 
-    /**
-     * Adds a DrawPath object to the list of existing paths.
-     * @param drawPath - the DrawPath object to add.
-     */
-    public void addDrawPath (DrawPath drawPath)
-    {
-        paths.add(drawPath);
-    }
-
-    /**
-     * Gets the start coordinates for the path.
-     * @return start - the start coordinates.
-     */
-    public Point getStart()
-    {
-        return start;
-    }
-
-    /**
-     * Gets the end coordinates for the path.
-     * @return end - the end coordinates.
-     */
-    public Point getEnd ()
-    {
-        return end;
-    }
-
     /**
      * Gets the most recent x-ordinate for the path.
      * @return x - the x-ordinate.
@@ -87,151 +79,194 @@ public class FreehandCrop
     }
 
     /**
-     * Returns the list of paths to be drawn upon the canvas.
-     * @return paths - the list of paths to be drawn.
+     * Starts a new stroke, discarding the previous one.
+     * @param x - the x-ordinate of the start.
+     * @param y - the y-ordinate of the start.
      */
-    public ArrayList<DrawPath> getPathsList ()
+    public void start (float x, float y)
     {
-        return paths;
+        clear();
+        simplifier.add(x, y);
+        lastX = x;
+        lastY = y;
     }
 
     /**
-     * Clears the paths list.
+     * Adds a curve from the end of the stroke.
+     * @param controlX - the x-ordinate of the control point.
+     * @param controlY - the y-ordinate of the control point.
+     * @param x - the x-ordinate of the end of the curve.
+     * @param y - the y-ordinate of the end of the curve.
+     * @return boolean - whether earlier parts of the stroke were simplified further to stay within the limit.
      */
-    public void clearPathsList ()
+    public boolean quadTo (float controlX, float controlY, float x, float y)
     {
-        paths.clear();
+        // the middle of the curve, so that a curve which bends sharply keeps its shape
+        boolean reduced = simplifier.add(
+                (lastX + 2 * controlX + x) / 4, (lastY + 2 * controlY + y) / 4);
+        reduced |= simplifier.add(x, y);
+        lastX = x;
+        lastY = y;
+        pathChanged = true;
+        return reduced;
     }
 
     /**
-     * Gets the path of the path drawn upon the canvas.
-     * @return Path - the path drawn upon the canvas.
+     * Finishes the stroke with a line to the most recent coordinate, which becomes the end point,
+     * and a line joining the start to the end.
      */
-    public Path getPath ()
+    public void finish ()
     {
-        return path;
-    }
-
-    public void createCropPath ()
-    {
-        cropPath = new Path();
+        endX = x;
+        endY = y;
+        finished = true;
+        pathChanged = true;
     }
 
     /**
-     * Gets the path of the path to be used for cropping.
-     * @return Path - the path to be used for cropping.
+     * Discards the stroke.
      */
-    public Path getCropPath ()
+    public void clear ()
     {
-        return cropPath;
+        simplifier.reset();
+        finished = false;
+        path.rewind();
+        pathChanged = false;
     }
 
     /**
-     * Creates new path and cropPath objects.
+     * Returns whether a stroke has been started.
+     * @return boolean - whether there is a stroke.
      */
-    public void createPaths ()
+    public boolean hasStroke ()
     {
-        path = new Path();
-        cropPath = new Path();
+        return simplifier.getVertexCount() > 0;
     }
 
     /**
-     * Clears the existing path and cropPath objects.
+     * Returns whether the stroke has been finished.
+     * @return boolean - whether the stroke is finished.
      */
-    public void resetPaths ()
+    public boolean isFinished ()
     {
-        path.reset();
-        cropPath.reset();
+        return finished;
     }
 
     /**
-     * Deletes the existing path and cropPath objects.
+     * Gets the x-ordinate of the start of the stroke.
+     * @return float - the x-ordinate.
      */
-    public void emptyPaths ()
+    public float getStartX ()
     {
-        path = null;
-        cropPath = null;
+        return simplifier.getVertices()[0];
     }
 
     /**
-     * Sets the start coordinates.
-     * @param start - the start coordinates.
+     * Gets the y-ordinate of the start of the stroke.
+     * @return float - the y-ordinate.
      */
-    public void setStartCoordinates (Point start)
+    public float getStartY ()
     {
-        this.start = start;
+        return simplifier.getVertices()[1];
     }
 
     /**
-     * Sets the end coordinates.
-     * @param end - the end coordinates.
+     * Gets the x-ordinate of the end of the finished stroke.
+     * @return float - the x-ordinate.
      */
-    public void setEndCoordinates (Point end)
+    public float getEndX ()
     {
-        this.end = end;
+        return endX;
     }
 
     /**
-     * Performs a lineTo operation on the path object.
-     * @param x - the x-ordinate to lineTo.
-     * @param y - the y-ordinate to lineTo.
+     * Gets the y-ordinate of the end of the finished stroke.
+     * @return float - the y-ordinate.
      */
-    public void pathLineTo (float x, float y)
+    public float getEndY ()
     {
-        path.lineTo(x, y);
+        return endY;
     }
 
     /**
-     * Performs a moveTo operation on the path object.
-     * @param x - the x-ordinate to moveTo.
-     * @param y - the y-ordinate to moveTo.
+     * Returns the vertices of the simplified stroke as x, y pairs, from its start.
+     * @return float[] - the vertices, of which only the first getPointCount() pairs are used.
      */
-    public void pathMoveTo (float x, float y)
+    public float[] getPoints ()
     {
-        path.moveTo(x, y);
+        return simplifier.getVertices();
     }
 
     /**
-     * Performs a quadTo operation on the path object.
-     * @param x1 - the first x-ordinate to moveTo.
-     * @param y1 - the first y-ordinate to moveTo.
-     * @param x2 - the second x-ordinate to moveTo.
-     * @param y2 - the second y-ordinate to moveTo.
+     * Returns the number of vertices of the simplified stroke.
+     * @return int - the number of x, y pairs in use.
      */
-    public void pathQuadTo (float x1, float y1, float x2, float y2)
+    public int getPointCount ()
     {
-        path.quadTo(x1, y1, x2, y2);
+        return simplifier.getVertexCount();
     }
 
     /**
-     * Performs a lineTo operation on the cropPath object.
-     * @param x - the x-ordinate to lineTo.
-     * @param y - the y-ordinate to lineTo.
+     * Gets the path drawn upon the canvas, rebuilding it if the stroke has changed since it was last requested.
+     * @return Path - the path drawn upon the canvas, which is reused and must not be modified.
      */
-    public void cropPathLineTo (float x, float y)
+    public Path getPath ()
     {
-        cropPath.lineTo(x, y);
+        if (pathChanged)
+        {
+            path.rewind();
+            addStroke(path);
+            pathChanged = false;
+        }
+        return path;
     }
 
     /**
-     * Performs a moveTo operation on the cropPath object.
-     * @param x - the x-ordinate to moveTo.
-     * @param y - the y-ordinate to moveTo.
+     * Builds the polygon outlined by the stroke, moved by an offset, e.g., into the coordinates of
+     * the bitmap. The polygon is closed from its last vertex back to its first.
+     * @param dx - the offset in x.
+     * @param dy - the offset in y.
+     * @return float[] - the polygon to be used for cropping as x, y pairs, or null if there is no stroke.
      */
-    public void cropPathMoveTo (float x, float y)
+    public float[] getCropPolygon (float dx, float dy)
     {
-        cropPath.moveTo(x, y);
+        if (!hasStroke())
+            return null;
+        float[] vertices = simplifier.getVertices();
+        int count = simplifier.getVertexCount() * 2;
+        // a finished stroke also ends at the most recent coordinate
+        float[] polygon = new float[finished ? count + 2 : count];
+        for (int i = 0; i < count; i += 2)
+        {
+            polygon[i] = vertices[i] + dx;
+            polygon[i + 1] = vertices[i + 1] + dy;
+        }
+        if (finished)
+        {
+            polygon[count] = endX + dx;
+            polygon[count + 1] = endY + dy;
+        }
+        return polygon;
     }
 
     /**
-     * Performs a quadTo operation on the cropPath object.
-     * @param x1 - the first x-ordinate to moveTo.
-     * @param y1 - the first y-ordinate to moveTo.
-     * @param x2 - the second x-ordinate to moveTo.
-     * @param y2 - the second y-ordinate to moveTo.
+     * Adds the simplified stroke, and the lines which finish it if it is finished, onto a path.
+     * @param target - the path to add to.
      */
-    public void cropPathQuadTo (float x1, float y1, float x2, float y2)
+    private void addStroke (Path target)
     {
-        cropPath.quadTo(x1, y1, x2, y2);
+        float[] vertices = simplifier.getVertices();
+        int count = simplifier.getVertexCount() * 2;
+        if (count == 0)
+            return;
+        target.moveTo(vertices[0], vertices[1]);
+        for (int i = 2; i < count; i += 2)
+            target.lineTo(vertices[i], vertices[i + 1]);
+        if (finished)
+        {
+            target.lineTo(endX, endY);
+            target.moveTo(vertices[0], vertices[1]);
+            target.lineTo(endX, endY);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,604 @@
+package com.danstoakes.easycrop;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class which encodes cropped images on a background executor. The format is chosen from the pixels:
+ * JPEG for opaque crops, which are usually photographs, and a lossless format which keeps the alpha
+ * channel for crops with transparent areas, e.g., those cut out with the freehand crop. The encoded
+ * bytes are written through a buffer straight into a file channel or any other stream.
+ */
+public class ImageExporter
+{
+    public static final int FORMAT_JPEG = 1;
+    public static final int FORMAT_PNG = 2;
+    public static final int FORMAT_WEBP_LOSSLESS = 3;
+
+    private static final int JPEG_QUALITY = 90;
+    // WEBP at a quality of 100 is encoded losslessly from Android 10
+    private static final int LOSSLESS_QUALITY = 100;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 2;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY));
+
+    static
+    {
+        // let the encode thread finish when no images are being exported
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private Future<?> future;
+
+    /**
+     * Starts encoding a bitmap into a file in the background. The listener is always called on the UI
+     * thread, and is not called at all once the export is cancelled, in which case the file is removed.
+     * The bitmap must not be modified until the listener has been called.
+     * @param bitmap - the bitmap to encode.
+     * @param directory - the directory to write the file into.
+     * @param name - the name of the file, without its extension, which depends upon the format.
+     * @param listener - the listener which receives the result.
+     */
+    public void export (final Bitmap bitmap, final File directory, final String name, final ExportListener listener)
+    {
+        try
+        {
+            future = EXECUTOR.submit(new Runnable()
+            {
+                /**
+                 * Chooses the format, then encodes the bitmap into the file, removing any partly
+                 * written file if it fails.
+                 */
+                @Override
+                public void run()
+                {
+                    int format = chooseFormat(bitmap);
+                    File file = new File(directory, name + "." + getExtension(format));
+                    try
+                    {
+                        Result result = encode(bitmap, format, file);
+                        // nothing will refer to the file if the export was cancelled while it was written
+                        if (isCancelled() && !file.delete())
+                            Log.w("APP_ERROR", "The cancelled image could not be removed: " + file);
+                        deliverResult(result, listener);
+                    } catch (IOException e)
+                    {
+                        Log.w("APP_ERROR", "There was an error encoding the cropped image: " + e.getMessage());
+                        if (file.exists() && !file.delete())
+                            Log.w("APP_ERROR", "The partial image could not be removed: " + file);
+                        deliverFailure(listener);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e)
+        {
+            Log.w("APP_ERROR", "Too many images are being exported at once.");
+            deliverFailure(listener);
+        }
+    }
+
+    /**
+     * Starts encoding a bitmap straight into a new MediaStore image in the background, which needs
+     * no storage permission. The image is inserted as pending, so it is hidden from other apps until
+     * it has been written, and is indexed by MediaStore without a separate media scan. The listener
+     * is always called on the UI thread, and is not called at all once the export is cancelled.
+     * @param resolver - the resolver to insert the image with.
+     * @param bitmap - the bitmap to encode.
+     * @param relativePath - the directory of the image within shared storage, e.g., "Pictures/Cropped".
+     * @param name - the name of the image, without its extension, which depends upon the format.
+     * @param listener - the listener which receives the result.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    public void exportToMediaStore (final ContentResolver resolver, final Bitmap bitmap,
+                                    final String relativePath, final String name, final ExportListener listener)
+    {
+        try
+        {
+            future = EXECUTOR.submit(new Runnable()
+            {
+                /**
+                 * Chooses the format, then encodes the bitmap into a new pending image.
+                 */
+                @Override
+                public void run()
+                {
+                    int format = chooseFormat(bitmap);
+                    try
+                    {
+                        deliverResult(encode(resolver, bitmap, format, relativePath, name), listener);
+                    } catch (IOException e)
+                    {
+                        Log.w("APP_ERROR", "There was an error saving the cropped image: " + e.getMessage());
+                        deliverFailure(listener);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e)
+        {
+            Log.w("APP_ERROR", "Too many images are being exported at once.");
+            deliverFailure(listener);
+        }
+    }
+
+    /**
+     * Starts copying an encoded image from one file to another in the background, e.g., from the
+     * cache to the camera roll. The listener is always called on the UI thread, and is not called
+     * at all once the copy is cancelled.
+     * @param source - the encoded image.
+     * @param destination - the file to write, which is replaced if it exists.
+     * @param format - the format the image is encoded in.
+     * @param listener - the listener which receives the result.
+     */
+    public void copy (final File source, final File destination, final int format, final ExportListener listener)
+    {
+        try
+        {
+            future = EXECUTOR.submit(new Runnable()
+            {
+                /**
+                 * Copies the file, removing any partly written copy if it fails.
+                 */
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        deliverResult(transfer(source, destination, format), listener);
+                    } catch (IOException e)
+                    {
+                        Log.w("APP_ERROR", "There was an error copying the encoded image: " + e.getMessage());
+                        if (destination.exists() && !destination.delete())
+                            Log.w("APP_ERROR", "The partial copy could not be removed: " + destination);
+                        deliverFailure(listener);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e)
+        {
+            Log.w("APP_ERROR", "Too many images are being exported at once.");
+            deliverFailure(listener);
+        }
+    }
+
+    /**
+     * Cancels the export, interrupting it if it is running and discarding its result.
+     */
+    public void cancel ()
+    {
+        cancelled.set(true);
+        if (future != null)
+            future.cancel(true);
+    }
+
+    /**
+     * Returns whether the export has been cancelled.
+     * @return boolean - whether the export has been cancelled.
+     */
+    public boolean isCancelled ()
+    {
+        return cancelled.get();
+    }
+
+    /**
+     * Chooses the format to encode a bitmap in: JPEG if every pixel is opaque, otherwise a lossless
+     * format which keeps the alpha channel.
+     * @param bitmap - the bitmap to encode.
+     * @return int - the format, one of FORMAT_JPEG, FORMAT_PNG or FORMAT_WEBP_LOSSLESS.
+     */
+    public static int chooseFormat (Bitmap bitmap)
+    {
+        if (!hasTransparency(bitmap))
+            return FORMAT_JPEG;
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? FORMAT_WEBP_LOSSLESS : FORMAT_PNG;
+    }
+
+    /**
+     * Returns whether any pixel of a bitmap is not fully opaque. The rows are read one at a time,
+     * stopping at the first transparent pixel, which is usually in the first row of a freehand crop.
+     * @param bitmap - the bitmap to check.
+     * @return boolean - whether the bitmap has transparent pixels.
+     */
+    private static boolean hasTransparency (Bitmap bitmap)
+    {
+        if (!bitmap.hasAlpha())
+            return false;
+        int width = bitmap.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < bitmap.getHeight(); y++)
+        {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int pixel : row)
+            {
+                if ((pixel >>> 24) != 0xFF)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes a bitmap into a file, through a buffer over the file's channel.
+     * @param bitmap - the bitmap to encode.
+     * @param format - the format to encode in.
+     * @param file - the file to write, which is replaced if it exists.
+     * @return Result - the file, format, size and time taken.
+     * @throws IOException - if the file could not be written.
+     */
+    public static Result encode (Bitmap bitmap, int format, File file) throws IOException
+    {
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file);
+             FileChannel channel = fileOutputStream.getChannel())
+        {
+            Result result = encode(bitmap, format, Channels.newOutputStream(channel));
+            return new Result(file, format, result.bytes, result.encodeMillis);
+        }
+    }
+
+    /**
+     * Encodes a bitmap into a new MediaStore image in one pass. The image is inserted with IS_PENDING
+     * set, written through the stream MediaStore opens for it, then published by clearing IS_PENDING.
+     * If anything fails, the pending image is deleted rather than left behind.
+     * @param resolver - the resolver to insert the image with.
+     * @param bitmap - the bitmap to encode.
+     * @param format - the format to encode in.
+     * @param relativePath - the directory of the image within shared storage.
+     * @param name - the name of the image, without its extension.
+     * @return Result - the format, size and time taken, without a file.
+     * @throws IOException - if the image could not be inserted or written.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    public static Result encode (ContentResolver resolver, Bitmap bitmap, int format,
+                                 String relativePath, String name) throws IOException
+    {
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, name + "." + getExtension(format));
+        values.put(MediaStore.MediaColumns.MIME_TYPE, getMimeType(format));
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        Uri uri = resolver.insert(MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY), values);
+        if (uri == null)
+            throw new IOException("The image could not be inserted into MediaStore");
+
+        boolean published = false;
+        try
+        {
+            Result result;
+            try (OutputStream outputStream = resolver.openOutputStream(uri))
+            {
+                if (outputStream == null)
+                    throw new IOException("The image could not be opened for writing: " + uri);
+                result = encode(bitmap, format, outputStream);
+            }
+            // publish the image now that it has been written
+            values.clear();
+            values.put(MediaStore.MediaColumns.IS_PENDING, 0);
+            resolver.update(uri, values, null, null);
+            published = true;
+            return result;
+        } finally
+        {
+            if (!published)
+                resolver.delete(uri, null, null);
+        }
+    }
+
+    /**
+     * Copies an encoded image from one file to another, channel to channel, so that the bytes can
+     * be moved by the kernel without passing through a buffer in the application.
+     * @param source - the encoded image.
+     * @param destination - the file to write, which is replaced if it exists.
+     * @param format - the format the image is encoded in.
+     * @return Result - the copy, its format, size and the time taken.
+     * @throws IOException - if either file could not be accessed.
+     */
+    public static Result transfer (File source, File destination, int format) throws IOException
+    {
+        long start = SystemClock.elapsedRealtime();
+        try (FileInputStream inputStream = new FileInputStream(source);
+             FileOutputStream outputStream = new FileOutputStream(destination);
+             FileChannel inputChannel = inputStream.getChannel();
+             FileChannel outputChannel = outputStream.getChannel())
+        {
+            // a transfer may move fewer bytes than asked for, so carry on until they have all moved
+            long size = inputChannel.size();
+            long position = 0;
+            while (position < size)
+                position += inputChannel.transferTo(position, size - position, outputChannel);
+            long copyMillis = SystemClock.elapsedRealtime() - start;
+            Log.d("APP_EXPORT", "Copied " + size / 1024 + "KB to " + destination + " in " + copyMillis + "ms");
+            return new Result(destination, format, size, copyMillis);
+        }
+    }
+
+    /**
+     * Encodes a bitmap into a stream through a buffer, counting the bytes written. The stream is
+     * flushed but not closed.
+     * @param bitmap - the bitmap to encode.
+     * @param format - the format to encode in.
+     * @param outputStream - the stream to write to.
+     * @return Result - the format, size and time taken, without a file.
+     * @throws IOException - if the stream could not be written, or the bitmap could not be encoded.
+     */
+    public static Result encode (Bitmap bitmap, int format, OutputStream outputStream) throws IOException
+    {
+        long start = SystemClock.elapsedRealtime();
+        CountingOutputStream countingStream = new CountingOutputStream(
+                new BufferedOutputStream(outputStream, BUFFER_SIZE));
+        if (!bitmap.compress(getCompressFormat(format), getQuality(format), countingStream))
+            throw new IOException("The bitmap could not be encoded as " + getMimeType(format));
+        countingStream.flush();
+        long encodeMillis = SystemClock.elapsedRealtime() - start;
+        Log.d("APP_EXPORT", "Encoded " + bitmap.getWidth() + "x" + bitmap.getHeight() + " as "
+                + getMimeType(format) + ": " + countingStream.getCount() / 1024 + "KB in " + encodeMillis + "ms");
+        return new Result(null, format, countingStream.getCount(), encodeMillis);
+    }
+
+    /**
+     * Returns the platform format for a format.
+     * @param format - the format.
+     * @return Bitmap.CompressFormat - the platform format.
+     */
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getCompressFormat (int format)
+    {
+        switch (format)
+        {
+            case FORMAT_JPEG:
+                return Bitmap.CompressFormat.JPEG;
+            case FORMAT_WEBP_LOSSLESS:
+                return Bitmap.CompressFormat.WEBP;
+            default:
+                return Bitmap.CompressFormat.PNG;
+        }
+    }
+
+    /**
+     * Returns the quality to encode a format at. PNG ignores it.
+     * @param format - the format.
+     * @return int - the quality, from 0 to 100.
+     */
+    private static int getQuality (int format)
+    {
+        return format == FORMAT_JPEG ? JPEG_QUALITY : LOSSLESS_QUALITY;
+    }
+
+    /**
+     * Returns the MIME type of a format.
+     * @param format - the format.
+     * @return String - the MIME type.
+     */
+    public static String getMimeType (int format)
+    {
+        switch (format)
+        {
+            case FORMAT_JPEG:
+                return "image/jpeg";
+            case FORMAT_WEBP_LOSSLESS:
+                return "image/webp";
+            default:
+                return "image/png";
+        }
+    }
+
+    /**
+     * Returns the file extension of a format.
+     * @param format - the format.
+     * @return String - the extension, without a dot.
+     */
+    public static String getExtension (int format)
+    {
+        switch (format)
+        {
+            case FORMAT_JPEG:
+                return "jpg";
+            case FORMAT_WEBP_LOSSLESS:
+                return "webp";
+            default:
+                return "png";
+        }
+    }
+
+    /**
+     * Posts the result to the listener on the UI thread.
+     * @param result - the result of the export.
+     * @param listener - the listener which receives the result.
+     */
+    private void deliverResult (final Result result, final ExportListener listener)
+    {
+        mainHandler.post(new Runnable()
+        {
+            /**
+             * Hands the result to the listener if the export is still active.
+             */
+            @Override
+            public void run()
+            {
+                if (!isCancelled())
+                    listener.onExported(result);
+            }
+        });
+    }
+
+    /**
+     * Posts a failure to the listener on the UI thread.
+     * @param listener - the listener which is notified.
+     */
+    private void deliverFailure (final ExportListener listener)
+    {
+        mainHandler.post(new Runnable()
+        {
+            /**
+             * Notifies the listener if the export is still active.
+             */
+            @Override
+            public void run()
+            {
+                if (!isCancelled())
+                    listener.onExportFailed();
+            }
+        });
+    }
+
+    /**
+     * Class which holds the outcome of an export.
+     */
+    public static class Result
+    {
+        private final File file;
+        private final int format;
+        private final long bytes;
+        private final long encodeMillis;
+
+        /**
+         * Constructor for the Result class.
+         * @param file - the file which was written, or null if the image was written to a stream.
+         * @param format - the format the image was encoded in.
+         * @param bytes - the number of bytes written.
+         * @param encodeMillis - the time taken to encode (or copy) and write the image.
+         */
+        Result (File file, int format, long bytes, long encodeMillis)
+        {
+            this.file = file;
+            this.format = format;
+            this.bytes = bytes;
+            this.encodeMillis = encodeMillis;
+        }
+
+        /**
+         * Returns the file which was written.
+         * @return File - the file, or null if the image was written to a stream.
+         */
+        public File getFile ()
+        {
+            return file;
+        }
+
+        /**
+         * Returns the format the image was encoded in.
+         * @return int - the format.
+         */
+        public int getFormat ()
+        {
+            return format;
+        }
+
+        /**
+         * Returns the MIME type of the encoded image.
+         * @return String - the MIME type.
+         */
+        public String getMimeType ()
+        {
+            return ImageExporter.getMimeType(format);
+        }
+
+        /**
+         * Returns the size of the encoded image.
+         * @return long - the number of bytes written.
+         */
+        public long getBytes ()
+        {
+            return bytes;
+        }
+
+        /**
+         * Returns the time taken to encode and write the image.
+         * @return long - the time in milliseconds.
+         */
+        public long getEncodeMillis ()
+        {
+            return encodeMillis;
+        }
+    }
+
+    /**
+     * Stream which counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        private long count;
+
+        /**
+         * Constructor for the CountingOutputStream class.
+         * @param outputStream - the stream to write to.
+         */
+        CountingOutputStream (OutputStream outputStream)
+        {
+            super(outputStream);
+        }
+
+        /**
+         * Writes a single byte.
+         * @param b - the byte to write.
+         * @throws IOException - if the stream could not be written.
+         */
+        @Override
+        public void write (int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        /**
+         * Writes part of an array of bytes, passing it on whole rather than a byte at a time.
+         * @param b - the bytes to write.
+         * @param off - the index of the first byte.
+         * @param len - the number of bytes.
+         * @throws IOException - if the stream could not be written.
+         */
+        @Override
+        public void write (byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        /**
+         * Returns the number of bytes written.
+         * @return long - the count.
+         */
+        long getCount ()
+        {
+            return count;
+        }
+    }
+
+    /**
+     * Interface which handles the callbacks once an export completes.
+     */
+    public interface ExportListener
+    {
+        void onExported (Result result);
+
+        void onExportFailed ();
+    }
+}
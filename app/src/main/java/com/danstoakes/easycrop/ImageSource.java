@@ -0,0 +1,202 @@
+package com.danstoakes.easycrop;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Class which provides access to the original pixels of an image through a region decoder,
+ * so that only the areas which are needed are ever decoded at full resolution.
+ */
+public class ImageSource
+{
+    private static final int TILE_SIZE = 1024;
+
+    private final BitmapRegionDecoder decoder;
+    private final int orientation;
+
+    /**
+     * Constructor for the ImageSource class.
+     * @param decoder - the region decoder for the image.
+     * @param orientation - the clockwise rotation in degrees needed to display the image upright.
+     */
+    private ImageSource (BitmapRegionDecoder decoder, int orientation)
+    {
+        this.decoder = decoder;
+        this.orientation = orientation;
+    }
+
+    /**
+     * Opens an image as a source which can be decoded region by region.
+     * @param contentResolver - the resolver used to open the image.
+     * @param uri - the uri of the image.
+     * @return ImageSource - the source for the image.
+     * @throws IOException - if the image could not be opened or its format does not support region decoding.
+     */
+    public static ImageSource open (ContentResolver contentResolver, Uri uri) throws IOException
+    {
+        InputStream inputStream = contentResolver.openInputStream(uri);
+        if (inputStream == null)
+            throw new IOException("Unable to open an input stream for " + uri);
+        try
+        {
+            // the decoder keeps its own copy of the encoded data, so the stream can be closed
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+            return new ImageSource(decoder, BitmapDecoder.getOrientation(contentResolver, uri));
+        } finally
+        {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Returns the width of the image as it is stored, i.e., before orientation is applied.
+     * @return int - the width of the image.
+     */
+    public int getWidth ()
+    {
+        return decoder.getWidth();
+    }
+
+    /**
+     * Returns the height of the image as it is stored, i.e., before orientation is applied.
+     * @return int - the height of the image.
+     */
+    public int getHeight ()
+    {
+        return decoder.getHeight();
+    }
+
+    /**
+     * Returns the orientation of the image.
+     * @return int - the clockwise rotation in degrees needed to display the image upright.
+     */
+    public int getOrientation ()
+    {
+        return orientation;
+    }
+
+    /**
+     * Returns the matrix which maps stored pixel coordinates to upright pixel coordinates.
+     * @return Matrix - the orientation matrix.
+     */
+    public Matrix getOrientationMatrix ()
+    {
+        Matrix matrix = new Matrix();
+        matrix.postRotate(orientation);
+        // move the rotated image back so that it starts at the origin
+        RectF bounds = new RectF(0, 0, getWidth(), getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        return matrix;
+    }
+
+    /**
+     * Decodes the whole image subsampled to fit within the requested bounds and rotated upright.
+     * @param reqWidth - the width the image has to fit within.
+     * @param reqHeight - the height the image has to fit within.
+     * @return Bitmap - the decoded preview.
+     */
+    public Bitmap decodePreview (int reqWidth, int reqHeight)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        // the displayed width and height are swapped if the image is on its side
+        if (orientation == 90 || orientation == 270)
+        {
+            width = getHeight();
+            height = getWidth();
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = BitmapDecoder.calculateInSampleSize(width, height, reqWidth, reqHeight);
+        // decode a mutable bitmap, so that it can be pooled once it is no longer needed
+        options.inMutable = true;
+        Bitmap bitmap = decoder.decodeRegion(new Rect(0, 0, getWidth(), getHeight()), options);
+        return BitmapDecoder.rotateToOrientation(bitmap, orientation);
+    }
+
+    /**
+     * Decodes a region of the image at full resolution, in stored pixel coordinates.
+     * @param region - the region to decode.
+     * @return Bitmap - the decoded region.
+     */
+    public Bitmap decodeRegion (Rect region)
+    {
+        Bitmap bitmap = BitmapPool.getInstance().get(region.width(), region.height(), Bitmap.Config.ARGB_8888);
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-region.left, -region.top);
+        drawRegion(new Canvas(bitmap), region, matrix, null);
+        return bitmap;
+    }
+
+    /**
+     * Decodes a region of the image at full resolution one tile at a time, drawing each tile
+     * through a matrix so that at most one tile is held in memory alongside the canvas. Every tile
+     * is decoded into the same pooled bitmap.
+     * @param canvas - the canvas to draw the region on.
+     * @param region - the region to decode, in stored pixel coordinates.
+     * @param matrix - the matrix mapping stored pixel coordinates to canvas coordinates.
+     * @param paint - the paint used to draw the tiles, which may be null.
+     */
+    public void drawRegion (Canvas canvas, Rect region, Matrix matrix, Paint paint)
+    {
+        // only decode the part of the region which lies within the image
+        Rect bounds = new Rect(region);
+        if (!bounds.intersect(0, 0, getWidth(), getHeight()))
+            return;
+
+        BitmapPool pool = BitmapPool.getInstance();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inBitmap = pool.getDirty(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Rect tile = new Rect();
+        Rect tileArea = new Rect();
+        Matrix tileMatrix = new Matrix();
+        try
+        {
+            for (int top = bounds.top; top < bounds.bottom; top += TILE_SIZE)
+            {
+                for (int left = bounds.left; left < bounds.right; left += TILE_SIZE)
+                {
+                    tile.set(left, top,
+                            Math.min(left + TILE_SIZE, bounds.right), Math.min(top + TILE_SIZE, bounds.bottom));
+                    Bitmap tileBitmap = decoder.decodeRegion(tile, options);
+                    if (tileBitmap != null)
+                    {
+                        // position the tile within the region, drawing only the part of the reused
+                        // bitmap which the tile was decoded into
+                        tileMatrix.set(matrix);
+                        tileMatrix.preTranslate(tile.left, tile.top);
+                        tileArea.set(0, 0, tile.width(), tile.height());
+                        canvas.save();
+                        canvas.concat(tileMatrix);
+                        canvas.drawBitmap(tileBitmap, tileArea, tileArea, paint);
+                        canvas.restore();
+                        if (tileBitmap != options.inBitmap)
+                            pool.put(tileBitmap);
+                    }
+                }
+            }
+        } finally
+        {
+            pool.put(options.inBitmap);
+        }
+    }
+
+    /**
+     * Releases the region decoder and the encoded data it holds.
+     */
+    public void recycle ()
+    {
+        decoder.recycle();
+    }
+}
@@ -0,0 +1,143 @@
+package com.danstoakes.easycrop;
+
+import android.graphics.Matrix;
+
+import com.danstoakes.easycrop.raster.RasterOps;
+
+/**
+ * Class which accumulates the rotations and flips applied to an image as a single matrix, so that
+ * pixels only need to be transformed when they are drawn or exported.
+ * The matrix works on normalised coordinates, where (0, 0) and (1, 1) are opposite corners of the
+ * image, which keeps it independent of the resolution it is applied at.
+ */
+public class ImageTransform
+{
+    private final Matrix matrix;
+
+    /**
+     * Constructor for the ImageTransform class.
+     */
+    public ImageTransform ()
+    {
+        matrix = new Matrix();
+    }
+
+    /**
+     * Rotates the image 90 degrees clockwise.
+     */
+    public void rotate ()
+    {
+        // (u, v) -> (1 - v, u)
+        Matrix rotation = new Matrix();
+        rotation.setValues(new float[] {0, -1, 1, 1, 0, 0, 0, 0, 1});
+        matrix.postConcat(rotation);
+    }
+
+    /**
+     * Mirrors the image in an axis.
+     * @param axis - the axis to mirror in, either RasterOps.FLIP_HORIZONTAL or RasterOps.FLIP_VERTICAL.
+     */
+    public void flip (int axis)
+    {
+        if (axis == RasterOps.FLIP_HORIZONTAL)
+        {
+            flipHorizontal();
+        } else if (axis == RasterOps.FLIP_VERTICAL)
+        {
+            flipVertical();
+        } else
+        {
+            throw new IllegalArgumentException("Unknown flip axis " + axis);
+        }
+    }
+
+    /**
+     * Mirrors the image in the x axis, i.e., left becomes right.
+     */
+    public void flipHorizontal ()
+    {
+        // (u, v) -> (1 - u, v)
+        matrix.postScale(-1, 1, 0.5f, 0.5f);
+    }
+
+    /**
+     * Mirrors the image in the y axis, i.e., top becomes bottom.
+     */
+    public void flipVertical ()
+    {
+        // (u, v) -> (u, 1 - v)
+        matrix.postScale(1, -1, 0.5f, 0.5f);
+    }
+
+    /**
+     * Removes all rotations and flips.
+     */
+    public void reset ()
+    {
+        matrix.reset();
+    }
+
+    /**
+     * Returns whether the image has been rotated or flipped.
+     * @return boolean - whether the transform changes the image.
+     */
+    public boolean isIdentity ()
+    {
+        return matrix.isIdentity();
+    }
+
+    /**
+     * Returns whether the width and height of the image are swapped, i.e., it is on its side.
+     * @return boolean - whether the width and height are swapped.
+     */
+    public boolean isSwapped ()
+    {
+        float[] values = new float[9];
+        matrix.getValues(values);
+        return values[Matrix.MSCALE_X] == 0;
+    }
+
+    /**
+     * Returns the width of an image once it is transformed.
+     * @param width - the width of the untransformed image.
+     * @param height - the height of the untransformed image.
+     * @return int - the width of the transformed image.
+     */
+    public int getWidth (int width, int height)
+    {
+        return isSwapped() ? height : width;
+    }
+
+    /**
+     * Returns the height of an image once it is transformed.
+     * @param width - the width of the untransformed image.
+     * @param height - the height of the untransformed image.
+     * @return int - the height of the transformed image.
+     */
+    public int getHeight (int width, int height)
+    {
+        return isSwapped() ? width : height;
+    }
+
+    /**
+     * Returns the matrix which maps the pixels of an untransformed image to the transformed image.
+     * @param width - the width of the untransformed image.
+     * @param height - the height of the untransformed image.
+     * @return Matrix - the pixel matrix, which keeps the transformed image positioned at the origin.
+     */
+    public Matrix getMatrix (float width, float height)
+    {
+        Matrix pixelMatrix = new Matrix();
+        // normalise the pixels, transform them, then scale them back up to the transformed size
+        pixelMatrix.setScale(1 / width, 1 / height);
+        pixelMatrix.postConcat(matrix);
+        if (isSwapped())
+        {
+            pixelMatrix.postScale(height, width);
+        } else
+        {
+            pixelMatrix.postScale(width, height);
+        }
+        return pixelMatrix;
+    }
+}
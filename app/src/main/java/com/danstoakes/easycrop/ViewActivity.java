@@ -3,27 +3,27 @@ package com.danstoakes.easycrop;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.core.content.FileProvider;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 /**
  * The activity responsible for loading the cropped image, as well as providing export functionality.
@@ -31,9 +31,45 @@ import java.util.Date;
 public class ViewActivity extends AppCompatActivity implements View.OnClickListener
 {
     private static final String DIRECTORY_PATH = "/Pictures/Cropped";
+    private static final String RELATIVE_PATH = Environment.DIRECTORY_PICTURES + "/Cropped";
     private static final int PERMISSION_WRITE_EXTERNAL_STORAGE = 1;
 
-    private Uri imageUri;
+    private String imageToken;
+    private ImageExporter imageExporter;
+    private ImageExporter imageEncoder;
+    private final List<Runnable> pendingActions = new ArrayList<>();
+
+    // shares the encoded image, kept as one instance so that repeated taps are queued only once
+    private final Runnable shareAction = new Runnable()
+    {
+        /**
+         * Starts a new share intent with the Uri of the encoded image attached.
+         */
+        @Override
+        public void run()
+        {
+            CropResultStore store = CropResultStore.getInstance();
+            Intent intent = new Intent(Intent.ACTION_SEND)
+                    .setFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
+                    .putExtra(Intent.EXTRA_STREAM, store.getEncodedUri(imageToken))
+                    .setType(store.getMimeType(imageToken));
+            // start the share activity
+            startActivity(Intent.createChooser(intent, "Share image via"));
+        }
+    };
+
+    // copies the encoded image to the camera roll
+    private final Runnable copyAction = new Runnable()
+    {
+        /**
+         * Copies the encoded image to the camera roll.
+         */
+        @Override
+        public void run()
+        {
+            copyToCameraRoll();
+        }
+    };
 
     /**
      * The first method called by the application, which handles setting up the UI, intents,
@@ -46,13 +82,14 @@ public class ViewActivity extends AppCompatActivity implements View.OnClickListe
         // set the view of the activity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_view);
-        // get the Uri of the cropped image
-        imageUri = getCroppedImageUri();
-        if (imageUri != null)
+        // get the cropped image, which is handed over in memory
+        imageToken = getIntent().getStringExtra("croppedImageToken");
+        Bitmap bitmap = CropResultStore.getInstance().getBitmap(imageToken);
+        if (bitmap != null)
         {
-            // load the image to be displayed
+            // display the image as it is, without encoding it
             ImageView imageView = findViewById(R.id.croppedImage);
-            imageView.setImageURI(imageUri);
+            imageView.setImageBitmap(bitmap);
         } else
         {
             Toast.makeText(ViewActivity.this,
@@ -67,16 +104,71 @@ public class ViewActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     /**
-     * Returns the Uri of the cropped image which was passed via an intent.
-     * @return - the Uri of the cropped image.
+     * Runs an action once the cropped image has been encoded into the cache, encoding it in the
+     * background first if it has not been already. Actions asked for while the image is being
+     * encoded are queued and run together once it has been.
+     * @param action - the action to run on the UI thread, which needs the encoded image.
      */
-    private Uri getCroppedImageUri ()
+    private void withEncodedImage (Runnable action)
     {
-        // return the Uri if it was passed to the Activity
-        if (getIntent().hasExtra("croppedImage"))
-            return Uri.parse(getIntent().getStringExtra("croppedImage"));
+        final CropResultStore store = CropResultStore.getInstance();
+        Bitmap bitmap = store.getBitmap(imageToken);
+        if (store.getEncodedUri(imageToken) != null)
+        {
+            action.run();
+            return;
+        }
+        // there is nothing to encode
+        if (bitmap == null)
+            return;
+        // the image is already being encoded, so the action waits for it
+        if (imageEncoder != null)
+        {
+            if (!pendingActions.contains(action))
+                pendingActions.add(action);
+            return;
+        }
+        // access the cache image folder, creating it if it does not exist
+        File imagesFolder = new File(getCacheDir(), "images");
+        if (!imagesFolder.exists() && !imagesFolder.mkdirs())
+        {
+            Toast.makeText(this, "There was a problem saving the cropped image.", Toast.LENGTH_LONG).show();
+            return;
+        }
+        pendingActions.add(action);
+        imageEncoder = new ImageExporter();
+        imageEncoder.export(bitmap, imagesFolder, imageToken, new ImageExporter.ExportListener()
+        {
+            /**
+             * Callback method which records the encoded file, then runs the queued actions.
+             * @param result - the file, format, size and time taken.
+             */
+            @Override
+            public void onExported(ImageExporter.Result result)
+            {
+                imageEncoder = null;
+                // retrieve the Uri from the file written to temporary storage
+                Uri uri = FileProvider.getUriForFile(
+                        ViewActivity.this, "com.danstoakes.fileprovider", result.getFile());
+                store.setEncoded(imageToken, uri, result);
+                List<Runnable> actions = new ArrayList<>(pendingActions);
+                pendingActions.clear();
+                for (Runnable queued : actions)
+                    queued.run();
+            }
 
-        return null;
+            /**
+             * Callback method which informs the user that the image could not be encoded.
+             */
+            @Override
+            public void onExportFailed()
+            {
+                imageEncoder = null;
+                pendingActions.clear();
+                Toast.makeText(ViewActivity.this,
+                        "There was a problem saving the cropped image.", Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     /**
@@ -90,17 +182,19 @@ public class ViewActivity extends AppCompatActivity implements View.OnClickListe
 
         if (viewID == R.id.saveButton)
         {
-            // check for save permissions
-            checkForPermissions();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            {
+                // scoped storage needs no permission to add an image to MediaStore
+                saveToMediaStore();
+            } else
+            {
+                // check for save permissions
+                checkForPermissions();
+            }
         } else if (viewID == R.id.shareButton)
         {
-            // start a new share intent and attach the Uri of the image
-            Intent intent = new Intent(Intent.ACTION_SEND)
-                    .setFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
-                    .putExtra(Intent.EXTRA_STREAM, imageUri)
-                    .setType("image/png");
-            // start the share activity
-            startActivity(Intent.createChooser(intent, "Share image via"));
+            // the image is only encoded once it is shared
+            withEncodedImage(shareAction);
         }
     }
 
@@ -190,52 +284,134 @@ public class ViewActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     /**
-     * Exports the canvas drawing as an image.
+     * Exports the cropped image to the camera roll, encoding it first if it has not been already.
      */
     private void exportImage ()
+    {
+        withEncodedImage(copyAction);
+    }
+
+    /**
+     * Copies the encoded image to the camera roll in the background.
+     */
+    private void copyToCameraRoll ()
     {
         // initialise the directories for saving
         File sdCardDirectory = Environment.getExternalStorageDirectory();
         File subDirectory = new File(sdCardDirectory.toString() + DIRECTORY_PATH);
         // create the directory if it does not exist
-        if (!subDirectory.exists())
+        if (!subDirectory.exists() && !subDirectory.mkdir())
+        {
+            Toast.makeText(this, "Could not save to camera roll", Toast.LENGTH_LONG).show();
+            return;
+        }
+        // only one copy runs at a time
+        if (imageExporter != null)
         {
-            if (!subDirectory.mkdir())
-                Toast.makeText(this, "Could not save to camera roll", Toast.LENGTH_LONG).show();
+            Toast.makeText(this, "The image is still being saved.", Toast.LENGTH_LONG).show();
+            return;
         }
 
-        if (subDirectory.exists())
+        CropResultStore store = CropResultStore.getInstance();
+        int format = store.getFormat(imageToken);
+        // create a new file to save the image into
+        File image = new File(subDirectory, "image_" + new Date().getTime() + "." + ImageExporter.getExtension(format));
+        imageExporter = new ImageExporter();
+        imageExporter.copy(store.getEncodedFile(imageToken), image, format, new ImageExporter.ExportListener()
         {
-            Date date = new Date();
-            try
+            /**
+             * Callback method which has the new file scanned and informs the user that it was saved.
+             * @param result - the copy, its format, size and the time taken.
+             */
+            @Override
+            public void onExported(ImageExporter.Result result)
             {
-                // create a new file to save the image into
-                File image = new File(subDirectory, "/image_" + date.getTime() + ".png");
-                // write the image to the file using an InputStream
-                InputStream inputStream = getContentResolver().openInputStream(imageUri);
-                OutputStream outputStream = new FileOutputStream(image);
-                byte[] bytes = new byte[1024];
-
-                int length;
-                try
-                {
-                    // loop through image and write to OutputStream
-                    while ((length = inputStream.read(bytes)) > 0)
-                        outputStream.write(bytes, 0, length);
-                    // close the streams
-                    outputStream.close();
-                    inputStream.close();
-                } catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+                imageExporter = null;
                 // scan the directory to cache the new file
-                MediaScannerConnection.scanFile(this, new String[]{image.toString()}, null, null);
-                Toast.makeText(this, "Saved to camera roll", Toast.LENGTH_LONG).show();
-            } catch (FileNotFoundException e)
+                MediaScannerConnection.scanFile(ViewActivity.this,
+                        new String[]{result.getFile().toString()}, new String[]{result.getMimeType()}, null);
+                Toast.makeText(ViewActivity.this, "Saved to camera roll", Toast.LENGTH_LONG).show();
+            }
+
+            /**
+             * Callback method which informs the user that the image could not be saved.
+             */
+            @Override
+            public void onExportFailed()
             {
-                Log.w("APP_INFO", "" + e.getMessage());
+                imageExporter = null;
+                Toast.makeText(ViewActivity.this, "Could not save to camera roll", Toast.LENGTH_LONG).show();
             }
+        });
+    }
+
+    /**
+     * Encodes the cropped image straight into a new MediaStore image in the background, without
+     * going through the cache, a storage permission or a media scan.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private void saveToMediaStore ()
+    {
+        Bitmap bitmap = CropResultStore.getInstance().getBitmap(imageToken);
+        // there is nothing to save
+        if (bitmap == null)
+            return;
+        // only one save runs at a time
+        if (imageExporter != null)
+        {
+            Toast.makeText(this, "The image is still being saved.", Toast.LENGTH_LONG).show();
+            return;
         }
+        imageExporter = new ImageExporter();
+        imageExporter.exportToMediaStore(getContentResolver(), bitmap, RELATIVE_PATH,
+                "image_" + new Date().getTime(), new ImageExporter.ExportListener()
+        {
+            /**
+             * Callback method which informs the user that the image was saved.
+             * @param result - the format, size and time taken.
+             */
+            @Override
+            public void onExported(ImageExporter.Result result)
+            {
+                imageExporter = null;
+                Toast.makeText(ViewActivity.this, "Saved to camera roll", Toast.LENGTH_LONG).show();
+            }
+
+            /**
+             * Callback method which informs the user that the image could not be saved.
+             */
+            @Override
+            public void onExportFailed()
+            {
+                imageExporter = null;
+                Toast.makeText(ViewActivity.this, "Could not save to camera roll", Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Releases the cropped image once the activity is finished with it. It is kept across
+     * configuration changes, when the activity is created again with the same token.
+     */
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        if (!isFinishing())
+            return;
+        ImageView imageView = findViewById(R.id.croppedImage);
+        imageView.setImageDrawable(null);
+        // stop any export first, so that its file is removed rather than left in the cache
+        boolean exporting = imageExporter != null || imageEncoder != null;
+        if (imageExporter != null)
+            imageExporter.cancel();
+        if (imageEncoder != null)
+            imageEncoder.cancel();
+        pendingActions.clear();
+        // forget the crop and delete the file it was encoded to
+        Bitmap bitmap = CropResultStore.getInstance().remove(imageToken);
+        // the bitmap may still be being encoded, so it is left to be collected rather than reused
+        if (!exporting)
+            BitmapPool.getInstance().put(bitmap);
     }
-}
\ No newline at end of file
+}
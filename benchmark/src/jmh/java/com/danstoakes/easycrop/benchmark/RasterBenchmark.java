@@ -0,0 +1,290 @@
+package com.danstoakes.easycrop.benchmark;
+
+import com.danstoakes.easycrop.raster.CoverageMask;
+import com.danstoakes.easycrop.raster.PolygonRasteriser;
+import com.danstoakes.easycrop.raster.Raster;
+import com.danstoakes.easycrop.raster.RasterOps;
+import com.danstoakes.easycrop.raster.RasterRotator;
+import com.danstoakes.easycrop.raster.RasterScaler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Benchmarks for the pixel operations behind BitmapHandler, run on synthetic 4:3 images of
+ * increasing size. Run with ./gradlew :benchmark:jmh, which writes the results to
+ * benchmark/build/reports/jmh/results.json.
+ */
+@State(Scope.Benchmark)
+public class RasterBenchmark
+{
+    private static final int DISPLAY_WIDTH = 1080;
+    private static final int LASSO_POINTS = 400;
+
+    @Param({"1", "12", "48", "108"})
+    public int megapixels;
+
+    private Raster raster;
+    private float[] lasso;
+    private ForkJoinPool serialPool;
+
+    /**
+     * Generates the synthetic image and the lasso polygon used by the mask benchmark.
+     */
+    @Setup(Level.Trial)
+    public void setUp ()
+    {
+        raster = createImage(megapixels);
+        lasso = createLasso(raster.getWidth(), raster.getHeight(), LASSO_POINTS);
+        serialPool = new ForkJoinPool(1);
+    }
+
+    /**
+     * Stops the single threaded pool.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown ()
+    {
+        serialPool.shutdown();
+    }
+
+    /**
+     * Crops the centre quarter of the image.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster crop ()
+    {
+        int width = raster.getWidth() / 2;
+        int height = raster.getHeight() / 2;
+        return RasterOps.crop(raster, width / 2, height / 2, width, height);
+    }
+
+    /**
+     * Rotates the image 90 degrees clockwise.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster rotate ()
+    {
+        return RasterOps.rotate90(raster);
+    }
+
+    /**
+     * Rotates the image 90 degrees clockwise on a single thread, as a baseline for how rotation
+     * scales with the number of cores.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster rotateSerial ()
+    {
+        return RasterRotator.rotate(raster, 90, serialPool);
+    }
+
+    /**
+     * Mirrors the image in the x axis.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster flipHorizontal ()
+    {
+        return RasterOps.flipHorizontal(raster);
+    }
+
+    /**
+     * Mirrors the image in the y axis.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster flipVertical ()
+    {
+        return RasterOps.flipVertical(raster);
+    }
+
+    /**
+     * Mirrors the image in the x axis without copying it. Flipping twice leaves the image as it was,
+     * so the state does not need resetting between invocations.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster flipHorizontalInPlace ()
+    {
+        RasterOps.flipInPlace(raster, RasterOps.FLIP_HORIZONTAL);
+        return raster;
+    }
+
+    /**
+     * Mirrors the image in the y axis without copying it.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster flipVerticalInPlace ()
+    {
+        RasterOps.flipInPlace(raster, RasterOps.FLIP_VERTICAL);
+        return raster;
+    }
+
+    /**
+     * Scales the image down to fit the width of a display.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster scale ()
+    {
+        int height = Math.round((float) raster.getHeight() * DISPLAY_WIDTH / raster.getWidth());
+        return RasterOps.scaleBilinear(raster, DISPLAY_WIDTH, height);
+    }
+
+    /**
+     * Scales the image down to fit the width of a display with the box filter.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster scaleBox ()
+    {
+        return scaleFiltered(RasterScaler.FILTER_BOX);
+    }
+
+    /**
+     * Scales the image down to fit the width of a display with the area-average filter.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster scaleArea ()
+    {
+        return scaleFiltered(RasterScaler.FILTER_AREA);
+    }
+
+    /**
+     * Scales the image down to fit the width of a display with the Lanczos filter.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster scaleLanczos ()
+    {
+        return scaleFiltered(RasterScaler.FILTER_LANCZOS);
+    }
+
+    /**
+     * Masks the image with a lasso polygon the way BitmapHandler does: the polygon is rasterised into
+     * an anti-aliased coverage mask, which is then applied a row at a time through one row buffer.
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster mask ()
+    {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        CoverageMask coverage = PolygonRasteriser.rasterise(lasso, LASSO_POINTS, PolygonRasteriser.FILL_NON_ZERO,
+                true, width, height);
+        int maskLeft = coverage.getLeft();
+        int maskTop = coverage.getTop();
+        int maskRight = maskLeft + coverage.getWidth();
+        int maskBottom = maskTop + coverage.getHeight();
+        // the rows are copied in and out of the buffer, as they are read from and written to a Bitmap
+        Raster masked = new Raster(width, height);
+        int[] source = raster.getPixels();
+        int[] output = masked.getPixels();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            if (y < maskTop || y >= maskBottom)
+            {
+                Arrays.fill(row, 0);
+            } else
+            {
+                System.arraycopy(source, y * width, row, 0, width);
+                Arrays.fill(row, 0, maskLeft, 0);
+                Arrays.fill(row, maskRight, width, 0);
+                coverage.applyToRow(row, maskLeft, y - maskTop);
+            }
+            System.arraycopy(row, 0, output, y * width, width);
+        }
+        return masked;
+    }
+
+    /**
+     * Masks the image with a lasso polygon through RasterOps.maskPolygon. The app no longer masks
+     * this way, so this is kept only as a reference point for mask().
+     * @return Raster - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public Raster maskPolygonReference ()
+    {
+        return RasterOps.maskPolygon(raster, lasso, LASSO_POINTS);
+    }
+
+    /**
+     * Fills the lasso polygon into an anti-aliased coverage mask over the image.
+     * @return CoverageMask - the result, returned so that it is not optimised away.
+     */
+    @Benchmark
+    public CoverageMask rasteriseAntiAliased ()
+    {
+        return PolygonRasteriser.rasterise(lasso, LASSO_POINTS, PolygonRasteriser.FILL_NON_ZERO, true,
+                raster.getWidth(), raster.getHeight());
+    }
+
+    /**
+     * Scales the image down to fit the width of a display.
+     * @param filter - the filter to scale with.
+     * @return Raster - the scaled image.
+     */
+    private Raster scaleFiltered (int filter)
+    {
+        int height = Math.round((float) raster.getHeight() * DISPLAY_WIDTH / raster.getWidth());
+        return RasterScaler.scale(raster, DISPLAY_WIDTH, height, filter);
+    }
+
+    /**
+     * Creates an opaque 4:3 image of roughly the given size, filled with a gradient and noise so
+     * that no operation can take shortcuts on uniform pixels.
+     * @param megapixels - the number of millions of pixels in the image.
+     * @return Raster - the synthetic image.
+     */
+    static Raster createImage (int megapixels)
+    {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int height = (int) Math.round(megapixels * 1e6 / width);
+        Raster raster = new Raster(width, height);
+        int[] pixels = raster.getPixels();
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++)
+        {
+            int row = y * width;
+            int green = y * 255 / height;
+            for (int x = 0; x < width; x++)
+                pixels[row + x] = 0xFF000000 | (x * 255 / width) << 16 | green << 8 | random.nextInt(256);
+        }
+        return raster;
+    }
+
+    /**
+     * Creates a wobbly, lasso-like polygon centred on the image.
+     * @param width - the width of the image.
+     * @param height - the height of the image.
+     * @param pointCount - the number of points in the polygon.
+     * @return float[] - the polygon as x, y pairs.
+     */
+    static float[] createLasso (int width, int height, int pointCount)
+    {
+        float[] points = new float[pointCount * 2];
+        for (int i = 0; i < pointCount; i++)
+        {
+            double angle = 2 * Math.PI * i / pointCount;
+            double radius = 0.4 + 0.05 * Math.sin(angle * 7);
+            points[i * 2] = (float) (width / 2.0 + Math.cos(angle) * radius * width);
+            points[i * 2 + 1] = (float) (height / 2.0 + Math.sin(angle) * radius * height);
+        }
+        return points;
+    }
+}
@@ -0,0 +1,119 @@
+package com.danstoakes.easycrop.raster;
+
+/**
+ * Class which holds how much of each pixel a shape covers, from 0 (outside) to 255 (inside), as one
+ * byte per pixel in row-major order. The mask only spans the bounding box of the shape, which is
+ * placed at an offset within the image it was made for.
+ */
+public class CoverageMask
+{
+    private final byte[] coverage;
+    private final int left;
+    private final int top;
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructor for an empty mask, i.e., one which covers nothing.
+     * @param left - the x-ordinate of the mask within its image.
+     * @param top - the y-ordinate of the mask within its image.
+     * @param width - the width of the mask.
+     * @param height - the height of the mask.
+     */
+    public CoverageMask (int left, int top, int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid mask size " + width + "x" + height);
+        long size = (long) width * height;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Mask " + width + "x" + height + " is too large");
+        this.coverage = new byte[(int) size];
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the coverage buffer of the mask, which is shared rather than copied.
+     * @return byte[] - the coverage of each pixel as an unsigned byte, row by row.
+     */
+    public byte[] getCoverage ()
+    {
+        return coverage;
+    }
+
+    /**
+     * Returns the coverage of a single pixel.
+     * @param x - the x-ordinate within the mask.
+     * @param y - the y-ordinate within the mask.
+     * @return int - the coverage, from 0 to 255.
+     */
+    public int getCoverage (int x, int y)
+    {
+        return coverage[y * width + x] & 0xFF;
+    }
+
+    /**
+     * Scales the alpha of a row of unpremultiplied ARGB pixels by a row of the mask. Pixels which
+     * are not covered at all are cleared to transparent.
+     * @param pixels - the pixels, which are modified.
+     * @param offset - the index of the pixel under the first pixel of the mask row.
+     * @param y - the row of the mask.
+     */
+    public void applyToRow (int[] pixels, int offset, int y)
+    {
+        int row = y * width;
+        for (int x = 0; x < width; x++)
+        {
+            int value = coverage[row + x] & 0xFF;
+            if (value == 0xFF)
+                continue;
+            int pixel = pixels[offset + x];
+            if (value == 0)
+            {
+                pixels[offset + x] = 0;
+            } else
+            {
+                int alpha = ((pixel >>> 24) * value + 127) / 255;
+                pixels[offset + x] = (alpha << 24) | (pixel & 0xFFFFFF);
+            }
+        }
+    }
+
+    /**
+     * Returns the x-ordinate of the mask within its image.
+     * @return int - the left of the mask.
+     */
+    public int getLeft ()
+    {
+        return left;
+    }
+
+    /**
+     * Returns the y-ordinate of the mask within its image.
+     * @return int - the top of the mask.
+     */
+    public int getTop ()
+    {
+        return top;
+    }
+
+    /**
+     * Returns the width of the mask.
+     * @return int - the width.
+     */
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    /**
+     * Returns the height of the mask.
+     * @return int - the height.
+     */
+    public int getHeight ()
+    {
+        return height;
+    }
+}
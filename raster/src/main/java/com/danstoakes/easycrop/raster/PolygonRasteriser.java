@@ -0,0 +1,326 @@
+package com.danstoakes.easycrop.raster;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Helper class which fills polygons into coverage masks with a scanline rasteriser. The edges are
+ * sorted by their top once, then each band of rows walks down them with its own active edge table,
+ * so bands are filled in parallel and the work is linear in the area of the polygon's bounding box.
+ * Spans are accumulated as the differences between neighbouring pixels and resolved once per row.
+ * Anti-aliased masks take several scanlines per row, with exact coverage where a span starts or ends
+ * part of the way through a pixel.
+ */
+public class PolygonRasteriser
+{
+    public static final int FILL_EVEN_ODD = 0;
+    public static final int FILL_NON_ZERO = 1;
+
+    private static final int ROWS_PER_BAND = 64;
+    // the scanlines per row of an anti-aliased mask
+    private static final int SUBSAMPLES = 16;
+    // the coverage of a whole pixel in fixed point, which each scanline takes a share of
+    private static final int FULL_COVERAGE = 1 << 16;
+
+    /**
+     * Fills a closed polygon into a mask, on the shared pool.
+     * @param vertices - the vertices as x, y pairs; the last is joined back to the first.
+     * @param vertexCount - the number of vertices to use.
+     * @param fillRule - which parts of the polygon are inside, either FILL_EVEN_ODD or FILL_NON_ZERO.
+     * @param antiAlias - whether pixels along the edges are partly covered.
+     * @param imageWidth - the width of the image the mask is for, which the polygon is clipped to.
+     * @param imageHeight - the height of the image the mask is for, which the polygon is clipped to.
+     * @return CoverageMask - the mask over the bounding box of the polygon, or null if it covers no pixels.
+     */
+    public static CoverageMask rasterise (float[] vertices, int vertexCount, int fillRule, boolean antiAlias,
+                                          int imageWidth, int imageHeight)
+    {
+        return rasterise(vertices, vertexCount, fillRule, antiAlias, imageWidth, imageHeight,
+                RasterThreads.getPool());
+    }
+
+    /**
+     * Fills a closed polygon into a mask.
+     * @param vertices - the vertices as x, y pairs; the last is joined back to the first.
+     * @param vertexCount - the number of vertices to use.
+     * @param fillRule - which parts of the polygon are inside, either FILL_EVEN_ODD or FILL_NON_ZERO.
+     * @param antiAlias - whether pixels along the edges are partly covered.
+     * @param imageWidth - the width of the image the mask is for, which the polygon is clipped to.
+     * @param imageHeight - the height of the image the mask is for, which the polygon is clipped to.
+     * @param pool - the pool to fill the bands of rows on.
+     * @return CoverageMask - the mask over the bounding box of the polygon, or null if it covers no pixels.
+     */
+    public static CoverageMask rasterise (float[] vertices, int vertexCount, int fillRule, boolean antiAlias,
+                                          int imageWidth, int imageHeight, ForkJoinPool pool)
+    {
+        if (fillRule != FILL_EVEN_ODD && fillRule != FILL_NON_ZERO)
+            throw new IllegalArgumentException("Unknown fill rule: " + fillRule);
+        if (vertexCount < 3)
+            return null;
+
+        // find the bounding box of the polygon within the image
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < vertexCount * 2; i += 2)
+        {
+            minX = Math.min(minX, vertices[i]);
+            maxX = Math.max(maxX, vertices[i]);
+            minY = Math.min(minY, vertices[i + 1]);
+            maxY = Math.max(maxY, vertices[i + 1]);
+        }
+        int left = Math.max(0, (int) Math.floor(minX));
+        int top = Math.max(0, (int) Math.floor(minY));
+        int right = Math.min(imageWidth, (int) Math.ceil(maxX));
+        int bottom = Math.min(imageHeight, (int) Math.ceil(maxY));
+        if (right <= left || bottom <= top)
+            return null;
+
+        Edges edges = new Edges(vertices, vertexCount, left, top);
+        CoverageMask mask = new CoverageMask(left, top, right - left, bottom - top);
+        fill(mask, edges, fillRule == FILL_EVEN_ODD, antiAlias, pool);
+        return mask;
+    }
+
+    /**
+     * Fills the rows of a mask in parallel bands.
+     * @param mask - the mask to fill.
+     * @param edges - the edges of the polygon, relative to the mask.
+     * @param evenOdd - whether the even-odd rule is used, rather than the non-zero rule.
+     * @param antiAlias - whether pixels along the edges are partly covered.
+     * @param pool - the pool to fill the bands on.
+     */
+    private static void fill (final CoverageMask mask, final Edges edges, final boolean evenOdd,
+                              final boolean antiAlias, ForkJoinPool pool)
+    {
+        final int width = mask.getWidth();
+        final byte[] coverage = mask.getCoverage();
+        final int samples = antiAlias ? SUBSAMPLES : 1;
+        final int weight = FULL_COVERAGE / samples;
+        RasterThreads.forEachRange(pool, mask.getHeight(), ROWS_PER_BAND, new RasterThreads.RangeTask()
+        {
+            /**
+             * Fills each of the given rows from scanlines through them.
+             * @param start - the first row.
+             * @param end - the row after the last.
+             */
+            @Override
+            public void run (int start, int end)
+            {
+                int[] active = new int[edges.count];
+                float[] activeX = new float[edges.count];
+                // the change in coverage from the previous pixel, and the coverage of partly covered pixels
+                int[] runs = new int[width + 1];
+                int[] partial = new int[width];
+                int activeCount = 0;
+                int nextEdge = 0;
+
+                for (int y = start; y < end; y++)
+                {
+                    for (int s = 0; s < samples; s++)
+                    {
+                        float scanY = y + (s + 0.5f) / samples;
+                        // add the edges which start above the scanline, and drop those which end above it
+                        while (nextEdge < edges.count && edges.top[edges.order[nextEdge]] <= scanY)
+                            active[activeCount++] = edges.order[nextEdge++];
+                        int kept = 0;
+                        for (int i = 0; i < activeCount; i++)
+                        {
+                            int edge = active[i];
+                            if (edges.bottom[edge] <= scanY)
+                                continue;
+                            active[kept] = edge;
+                            activeX[kept] = edges.x[edge] + (scanY - edges.top[edge]) * edges.slope[edge];
+                            kept++;
+                        }
+                        activeCount = kept;
+                        sortByX(active, activeX, activeCount);
+
+                        // walk along the crossings, filling between them wherever the fill rule says inside
+                        int winding = 0;
+                        float spanStart = 0;
+                        for (int i = 0; i < activeCount; i++)
+                        {
+                            boolean wasInside = evenOdd ? (winding & 1) != 0 : winding != 0;
+                            winding += evenOdd ? 1 : edges.direction[active[i]];
+                            boolean inside = evenOdd ? (winding & 1) != 0 : winding != 0;
+                            if (inside && !wasInside)
+                            {
+                                spanStart = activeX[i];
+                            } else if (!inside && wasInside)
+                            {
+                                if (antiAlias)
+                                {
+                                    addSpan(runs, partial, width, spanStart, activeX[i], weight);
+                                } else
+                                {
+                                    addPixelCentres(runs, width, spanStart, activeX[i], weight);
+                                }
+                            }
+                        }
+                    }
+                    resolveRow(coverage, y * width, runs, partial, width);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sorts the active edges by where they cross the scanline. An insertion sort suits them, as
+     * they are already in order unless edges have crossed since the previous scanline.
+     * @param active - the active edges.
+     * @param activeX - where each active edge crosses the scanline.
+     * @param count - the number of active edges.
+     */
+    private static void sortByX (int[] active, float[] activeX, int count)
+    {
+        for (int i = 1; i < count; i++)
+        {
+            int edge = active[i];
+            float x = activeX[i];
+            int j = i - 1;
+            while (j >= 0 && activeX[j] > x)
+            {
+                active[j + 1] = active[j];
+                activeX[j + 1] = activeX[j];
+                j--;
+            }
+            active[j + 1] = edge;
+            activeX[j + 1] = x;
+        }
+    }
+
+    /**
+     * Adds a span to a row, with whole pixels recorded as runs and the pixels at either end
+     * covered by the fraction of them within the span.
+     * @param runs - the change in coverage from the previous pixel.
+     * @param partial - the coverage of partly covered pixels.
+     * @param width - the width of the row.
+     * @param start - the x-ordinate the span starts at.
+     * @param end - the x-ordinate the span ends at.
+     * @param weight - the coverage of a whole pixel from this scanline.
+     */
+    private static void addSpan (int[] runs, int[] partial, int width, float start, float end, int weight)
+    {
+        start = Math.max(start, 0);
+        end = Math.min(end, width);
+        if (end <= start)
+            return;
+        int first = (int) start;
+        int last = (int) end;
+        if (first == last)
+        {
+            partial[first] += (int) ((end - start) * weight);
+            return;
+        }
+        partial[first] += (int) ((first + 1 - start) * weight);
+        runs[first + 1] += weight;
+        runs[last] -= weight;
+        if (last < width)
+            partial[last] += (int) ((end - last) * weight);
+    }
+
+    /**
+     * Adds a span to a row, covering the pixels whose centres lie within it.
+     * @param runs - the change in coverage from the previous pixel.
+     * @param width - the width of the row.
+     * @param start - the x-ordinate the span starts at.
+     * @param end - the x-ordinate the span ends at.
+     * @param weight - the coverage of a whole pixel.
+     */
+    private static void addPixelCentres (int[] runs, int width, float start, float end, int weight)
+    {
+        int first = Math.max(0, (int) Math.ceil(start - 0.5f));
+        int last = Math.min(width, (int) Math.ceil(end - 0.5f));
+        if (last <= first)
+            return;
+        runs[first] += weight;
+        runs[last] -= weight;
+    }
+
+    /**
+     * Converts the accumulated coverage of a row into bytes, and clears it for the next row.
+     * @param coverage - the coverage buffer of the mask.
+     * @param offset - the index of the first pixel of the row.
+     * @param runs - the change in coverage from the previous pixel.
+     * @param partial - the coverage of partly covered pixels.
+     * @param width - the width of the row.
+     */
+    private static void resolveRow (byte[] coverage, int offset, int[] runs, int[] partial, int width)
+    {
+        int run = 0;
+        for (int x = 0; x < width; x++)
+        {
+            run += runs[x];
+            int value = run + partial[x];
+            // a whole pixel is at most 255 * 2^16 once scaled, which fits within an int
+            coverage[offset + x] = (byte) Math.min(255, (value * 255 + FULL_COVERAGE / 2) >> 16);
+            runs[x] = 0;
+            partial[x] = 0;
+        }
+        runs[width] = 0;
+    }
+
+    /**
+     * The non-horizontal edges of a polygon, relative to its mask, held as parallel arrays with
+     * each edge running downwards, in an order sorted by their tops.
+     */
+    private static class Edges
+    {
+        final float[] top;
+        final float[] bottom;
+        // the x-ordinate at the top of the edge, and its change per unit of y
+        final float[] x;
+        final float[] slope;
+        // +1 for edges which run down the polygon, -1 for those which run up it
+        final int[] direction;
+        final int[] order;
+        int count;
+
+        /**
+         * Constructor for the Edges class.
+         * @param vertices - the vertices of the polygon as x, y pairs.
+         * @param vertexCount - the number of vertices.
+         * @param left - the x-ordinate of the mask, which is subtracted from every vertex.
+         * @param top - the y-ordinate of the mask, which is subtracted from every vertex.
+         */
+        Edges (float[] vertices, int vertexCount, int left, int top)
+        {
+            this.top = new float[vertexCount];
+            this.bottom = new float[vertexCount];
+            this.x = new float[vertexCount];
+            this.slope = new float[vertexCount];
+            this.direction = new int[vertexCount];
+            for (int i = 0; i < vertexCount; i++)
+            {
+                int j = (i + 1) % vertexCount;
+                float x0 = vertices[i * 2] - left;
+                float y0 = vertices[i * 2 + 1] - top;
+                float x1 = vertices[j * 2] - left;
+                float y1 = vertices[j * 2 + 1] - top;
+                // horizontal edges are never crossed by a scanline
+                if (y0 == y1)
+                    continue;
+                boolean down = y1 > y0;
+                this.top[count] = down ? y0 : y1;
+                this.bottom[count] = down ? y1 : y0;
+                this.x[count] = down ? x0 : x1;
+                this.slope[count] = (x1 - x0) / (y1 - y0);
+                this.direction[count] = down ? 1 : -1;
+                count++;
+            }
+
+            // sort by top, through keys holding the top (as bits which sort like the value) and the index
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++)
+            {
+                int bits = Float.floatToIntBits(this.top[i]);
+                bits ^= (bits >> 31) & 0x7FFFFFFF;
+                keys[i] = ((long) bits << 32) | i;
+            }
+            Arrays.sort(keys);
+            order = new int[count];
+            for (int i = 0; i < count; i++)
+                order[i] = (int) keys[i];
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.danstoakes.easycrop.raster;
+
+import java.util.Arrays;
+
+/**
+ * Helper class which simplifies a polyline while its points are still being added, e.g., as a
+ * stroke is drawn. Each point extends the last segment for as long as every point it replaces lies
+ * within the tolerance of it, in the manner of Ramer-Douglas-Peucker, so straight and gently curving
+ * runs collapse to a few vertices. Should the vertices still outnumber the limit, those which
+ * contribute the least area are removed (Visvalingam-Whyatt) until a quarter of the limit is free,
+ * which keeps the polyline bounded however long the stroke becomes.
+ */
+public class PolylineSimplifier
+{
+    // the most points a segment may replace before it is fixed, which bounds the cost of each point
+    private static final int MAX_PENDING = 64;
+
+    private final float toleranceSquared;
+    private final int maxVertices;
+
+    // the vertices as x, y pairs, of which the last follows the most recent point until it is fixed
+    private final float[] vertices;
+    private int vertexCount;
+    // the points replaced by the last segment, which must stay within the tolerance of it
+    private final float[] pending;
+    private int pendingCount;
+    private int reductionCount;
+
+    // working space for reduce(), kept so that it does not allocate each time
+    private final int[] previous;
+    private final int[] next;
+    private final float[] areas;
+    private final boolean[] removed;
+    // a binary min-heap of vertex indices ordered by area, and the position of each vertex within it
+    private final int[] heap;
+    private final int[] heapPositions;
+    private int heapSize;
+
+    /**
+     * Constructor for the PolylineSimplifier class.
+     * @param tolerance - the furthest, in pixels, a point may lie from the simplified polyline.
+     * @param maxVertices - the most vertices the simplified polyline may have, at least 4.
+     */
+    public PolylineSimplifier (float tolerance, int maxVertices)
+    {
+        if (tolerance < 0)
+            throw new IllegalArgumentException("The tolerance must not be negative: " + tolerance);
+        if (maxVertices < 4)
+            throw new IllegalArgumentException("At least 4 vertices are needed: " + maxVertices);
+        this.toleranceSquared = tolerance * tolerance;
+        this.maxVertices = maxVertices;
+        vertices = new float[(maxVertices + 1) * 2];
+        pending = new float[MAX_PENDING * 2];
+        previous = new int[maxVertices + 1];
+        next = new int[maxVertices + 1];
+        areas = new float[maxVertices + 1];
+        removed = new boolean[maxVertices + 1];
+        heap = new int[maxVertices + 1];
+        heapPositions = new int[maxVertices + 1];
+    }
+
+    /**
+     * Discards every point, ready for a new polyline.
+     */
+    public void reset ()
+    {
+        vertexCount = 0;
+        pendingCount = 0;
+        reductionCount = 0;
+    }
+
+    /**
+     * Adds a point to the end of the polyline.
+     * @param x - the x-ordinate of the point.
+     * @param y - the y-ordinate of the point.
+     * @return boolean - whether vertices before the last segment were removed to stay within the limit.
+     */
+    public boolean add (float x, float y)
+    {
+        if (vertexCount < 2)
+        {
+            addVertex(x, y);
+            return false;
+        }
+        int last = (vertexCount - 1) * 2;
+        float lastX = vertices[last];
+        float lastY = vertices[last + 1];
+        // move the last vertex to the point if it and the points it replaces stay close to the segment
+        if (pendingCount < MAX_PENDING && fits(vertices[last - 2], vertices[last - 1], x, y, lastX, lastY))
+        {
+            pending[pendingCount * 2] = lastX;
+            pending[pendingCount * 2 + 1] = lastY;
+            pendingCount++;
+            vertices[last] = x;
+            vertices[last + 1] = y;
+            return false;
+        }
+        // otherwise fix the last vertex where it is and start a new segment from it
+        pendingCount = 0;
+        addVertex(x, y);
+        if (vertexCount <= maxVertices)
+            return false;
+        reduce(maxVertices - maxVertices / 4);
+        // the segment the pending points were measured against may have changed
+        pendingCount = 0;
+        reductionCount++;
+        return true;
+    }
+
+    /**
+     * Returns whether a segment passes within the tolerance of a point and of every pending point.
+     * @param startX - the x-ordinate of the start of the segment.
+     * @param startY - the y-ordinate of the start of the segment.
+     * @param endX - the x-ordinate of the end of the segment.
+     * @param endY - the y-ordinate of the end of the segment.
+     * @param x - the x-ordinate of the point.
+     * @param y - the y-ordinate of the point.
+     * @return boolean - whether all of the points are within the tolerance.
+     */
+    private boolean fits (float startX, float startY, float endX, float endY, float x, float y)
+    {
+        if (distanceSquared(startX, startY, endX, endY, x, y) > toleranceSquared)
+            return false;
+        for (int i = 0; i < pendingCount * 2; i += 2)
+        {
+            if (distanceSquared(startX, startY, endX, endY, pending[i], pending[i + 1]) > toleranceSquared)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the squared distance from a point to the nearest point of a segment.
+     * @param startX - the x-ordinate of the start of the segment.
+     * @param startY - the y-ordinate of the start of the segment.
+     * @param endX - the x-ordinate of the end of the segment.
+     * @param endY - the y-ordinate of the end of the segment.
+     * @param x - the x-ordinate of the point.
+     * @param y - the y-ordinate of the point.
+     * @return float - the squared distance.
+     */
+    private static float distanceSquared (float startX, float startY, float endX, float endY, float x, float y)
+    {
+        float dx = endX - startX;
+        float dy = endY - startY;
+        float lengthSquared = dx * dx + dy * dy;
+        float t = 0;
+        // project the point onto the segment, clamping it to the ends
+        if (lengthSquared > 0)
+            t = Math.max(0, Math.min(1, ((x - startX) * dx + (y - startY) * dy) / lengthSquared));
+        float nearestX = startX + t * dx - x;
+        float nearestY = startY + t * dy - y;
+        return nearestX * nearestX + nearestY * nearestY;
+    }
+
+    /**
+     * Appends a vertex.
+     * @param x - the x-ordinate of the vertex.
+     * @param y - the y-ordinate of the vertex.
+     */
+    private void addVertex (float x, float y)
+    {
+        vertices[vertexCount * 2] = x;
+        vertices[vertexCount * 2 + 1] = y;
+        vertexCount++;
+    }
+
+    /**
+     * Removes the vertices which contribute the least area, i.e., the smallest triangle with their
+     * neighbours, until a number remain. The first and last vertices are always kept.
+     * @param target - the number of vertices to keep.
+     */
+    private void reduce (int target)
+    {
+        int count = vertexCount;
+        heapSize = 0;
+        for (int i = 0; i < count; i++)
+        {
+            previous[i] = i - 1;
+            next[i] = i + 1;
+            removed[i] = false;
+        }
+        for (int i = 1; i < count - 1; i++)
+        {
+            areas[i] = area(i - 1, i, i + 1);
+            place(i, heapSize++);
+        }
+        for (int position = heapSize / 2 - 1; position >= 0; position--)
+            siftDown(position);
+
+        int remaining = count;
+        while (remaining > target && heapSize > 0)
+        {
+            // take the vertex with the smallest area off the heap
+            int i = heap[0];
+            float area = areas[i];
+            if (--heapSize > 0)
+            {
+                place(heap[heapSize], 0);
+                siftDown(0);
+            }
+            removed[i] = true;
+            remaining--;
+            int before = previous[i];
+            int after = next[i];
+            next[before] = after;
+            previous[after] = before;
+            // the neighbours take on at least the removed area, so that the order of removal holds
+            if (before > 0)
+                update(before, area);
+            if (after < count - 1)
+                update(after, area);
+        }
+
+        // close the gaps left by the removed vertices
+        int kept = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (removed[i])
+                continue;
+            vertices[kept * 2] = vertices[i * 2];
+            vertices[kept * 2 + 1] = vertices[i * 2 + 1];
+            kept++;
+        }
+        vertexCount = kept;
+    }
+
+    /**
+     * Recalculates the area of a vertex whose neighbour was removed.
+     * @param i - the index of the vertex.
+     * @param minimum - the area of the removed neighbour.
+     */
+    private void update (int i, float minimum)
+    {
+        areas[i] = Math.max(minimum, area(previous[i], i, next[i]));
+        // the area may have grown or shrunk, so move the vertex whichever way it now belongs
+        siftUp(heapPositions[i]);
+        siftDown(heapPositions[i]);
+    }
+
+    /**
+     * Puts a vertex at a position in the heap.
+     * @param i - the index of the vertex.
+     * @param position - the position in the heap.
+     */
+    private void place (int i, int position)
+    {
+        heap[position] = i;
+        heapPositions[i] = position;
+    }
+
+    /**
+     * Moves the vertex at a position in the heap up until its parent is no larger.
+     * @param position - the position of the vertex in the heap.
+     */
+    private void siftUp (int position)
+    {
+        int i = heap[position];
+        while (position > 0)
+        {
+            int parent = (position - 1) >>> 1;
+            if (!isSmaller(i, heap[parent]))
+                break;
+            place(heap[parent], position);
+            position = parent;
+        }
+        place(i, position);
+    }
+
+    /**
+     * Moves the vertex at a position in the heap down until neither of its children is smaller.
+     * @param position - the position of the vertex in the heap.
+     */
+    private void siftDown (int position)
+    {
+        int i = heap[position];
+        while (true)
+        {
+            int child = position * 2 + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && isSmaller(heap[child + 1], heap[child]))
+                child++;
+            if (!isSmaller(heap[child], i))
+                break;
+            place(heap[child], position);
+            position = child;
+        }
+        place(i, position);
+    }
+
+    /**
+     * Returns whether a vertex comes before another in the heap: by area, then by index.
+     * @param a - the index of the first vertex.
+     * @param b - the index of the second vertex.
+     * @return boolean - whether the first vertex comes first.
+     */
+    private boolean isSmaller (int a, int b)
+    {
+        return areas[a] < areas[b] || (areas[a] == areas[b] && a < b);
+    }
+
+    /**
+     * Returns the area of the triangle made by three vertices.
+     * @param a - the index of the first vertex.
+     * @param b - the index of the second vertex.
+     * @param c - the index of the third vertex.
+     * @return float - the area.
+     */
+    private float area (int a, int b, int c)
+    {
+        float abX = vertices[b * 2] - vertices[a * 2];
+        float abY = vertices[b * 2 + 1] - vertices[a * 2 + 1];
+        float acX = vertices[c * 2] - vertices[a * 2];
+        float acY = vertices[c * 2 + 1] - vertices[a * 2 + 1];
+        return Math.abs(abX * acY - abY * acX) / 2;
+    }
+
+    /**
+     * Returns the vertices of the simplified polyline as x, y pairs.
+     * @return float[] - the vertices, of which only the first getVertexCount() pairs are used.
+     */
+    public float[] getVertices ()
+    {
+        return vertices;
+    }
+
+    /**
+     * Returns a copy of the vertices of the simplified polyline as x, y pairs.
+     * @return float[] - the vertices.
+     */
+    public float[] toArray ()
+    {
+        return Arrays.copyOf(vertices, vertexCount * 2);
+    }
+
+    /**
+     * Returns the number of vertices of the simplified polyline.
+     * @return int - the number of x, y pairs in use.
+     */
+    public int getVertexCount ()
+    {
+        return vertexCount;
+    }
+
+    /**
+     * Returns the number of times vertices have been removed to stay within the limit.
+     * @return int - the number of reductions.
+     */
+    public int getReductionCount ()
+    {
+        return reductionCount;
+    }
+}
@@ -0,0 +1,102 @@
+package com.danstoakes.easycrop.raster;
+
+/**
+ * Class which holds an image as packed ARGB pixels in row-major order, independently of any platform
+ * bitmap type.
+ */
+public class Raster
+{
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructor for an empty (fully transparent) raster.
+     * @param width - the width of the raster.
+     * @param height - the height of the raster.
+     */
+    public Raster (int width, int height)
+    {
+        this(new int[checkedSize(width, height)], width, height);
+    }
+
+    /**
+     * Constructor for a raster which wraps an existing pixel buffer without copying it.
+     * @param pixels - the ARGB pixels, row by row.
+     * @param width - the width of the raster.
+     * @param height - the height of the raster.
+     */
+    public Raster (int[] pixels, int width, int height)
+    {
+        if (pixels.length < checkedSize(width, height))
+            throw new IllegalArgumentException("Pixel buffer is smaller than " + width + "x" + height);
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the number of pixels a raster of the given size holds, failing if it is not a valid size.
+     * @param width - the width of the raster.
+     * @param height - the height of the raster.
+     * @return int - the number of pixels.
+     */
+    private static int checkedSize (int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid raster size " + width + "x" + height);
+        long size = (long) width * height;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Raster " + width + "x" + height + " is too large");
+        return (int) size;
+    }
+
+    /**
+     * Returns the pixel buffer of the raster, which is shared rather than copied.
+     * @return int[] - the ARGB pixels, row by row.
+     */
+    public int[] getPixels ()
+    {
+        return pixels;
+    }
+
+    /**
+     * Returns the width of the raster.
+     * @return int - the width.
+     */
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    /**
+     * Returns the height of the raster.
+     * @return int - the height.
+     */
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    /**
+     * Returns a single pixel of the raster.
+     * @param x - the x-ordinate of the pixel.
+     * @param y - the y-ordinate of the pixel.
+     * @return int - the ARGB pixel.
+     */
+    public int getPixel (int x, int y)
+    {
+        return pixels[y * width + x];
+    }
+
+    /**
+     * Sets a single pixel of the raster.
+     * @param x - the x-ordinate of the pixel.
+     * @param y - the y-ordinate of the pixel.
+     * @param pixel - the ARGB pixel.
+     */
+    public void setPixel (int x, int y, int pixel)
+    {
+        pixels[y * width + x] = pixel;
+    }
+}
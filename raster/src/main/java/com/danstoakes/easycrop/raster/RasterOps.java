@@ -0,0 +1,350 @@
+package com.danstoakes.easycrop.raster;
+
+import java.util.Arrays;
+
+/**
+ * Helper class which performs the pixel operations used when cropping on rasters. Every operation
+ * returns a new raster and leaves its input untouched. Loops run over the rows of the output so that
+ * pixels are written sequentially, and whole rows are copied with System.arraycopy where possible.
+ * Rotations are handed to RasterRotator, which tiles them and runs them on every core.
+ */
+public class RasterOps
+{
+    public static final int FLIP_HORIZONTAL = 1;
+    public static final int FLIP_VERTICAL = 2;
+
+    private static final int RB_MASK = 0x00FF00FF;
+    private static final int ROWS_PER_BAND = 256;
+
+    /**
+     * Returns the raster rotated 90 degrees clockwise.
+     * @param raster - the input raster.
+     * @return Raster - the rotated raster.
+     */
+    public static Raster rotate90 (Raster raster)
+    {
+        return RasterRotator.rotate(raster, 90);
+    }
+
+    /**
+     * Returns the raster rotated 180 degrees.
+     * @param raster - the input raster.
+     * @return Raster - the rotated raster.
+     */
+    public static Raster rotate180 (Raster raster)
+    {
+        return RasterRotator.rotate(raster, 180);
+    }
+
+    /**
+     * Returns the raster rotated 270 degrees clockwise, i.e., 90 degrees anticlockwise.
+     * @param raster - the input raster.
+     * @return Raster - the rotated raster.
+     */
+    public static Raster rotate270 (Raster raster)
+    {
+        return RasterRotator.rotate(raster, 270);
+    }
+
+    /**
+     * Returns the raster mirrored in the x axis, i.e., left becomes right.
+     * @param raster - the input raster.
+     * @return Raster - the flipped raster.
+     */
+    public static Raster flipHorizontal (Raster raster)
+    {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int[] src = raster.getPixels();
+        int[] dst = new int[width * height];
+        // reverse each row in turn
+        for (int y = 0; y < height; y++)
+        {
+            int row = y * width;
+            int last = row + width - 1;
+            for (int x = 0; x < width; x++)
+                dst[row + x] = src[last - x];
+        }
+        return new Raster(dst, width, height);
+    }
+
+    /**
+     * Returns the raster mirrored in the y axis, i.e., top becomes bottom.
+     * @param raster - the input raster.
+     * @return Raster - the flipped raster.
+     */
+    public static Raster flipVertical (Raster raster)
+    {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int[] src = raster.getPixels();
+        int[] dst = new int[width * height];
+        // copy whole rows into the opposite position
+        for (int y = 0; y < height; y++)
+            System.arraycopy(src, (height - 1 - y) * width, dst, y * width, width);
+        return new Raster(dst, width, height);
+    }
+
+    /**
+     * Returns the raster mirrored in an axis.
+     * @param raster - the input raster.
+     * @param axis - the axis to mirror in, either FLIP_HORIZONTAL or FLIP_VERTICAL.
+     * @return Raster - the flipped raster.
+     */
+    public static Raster flip (Raster raster, int axis)
+    {
+        checkFlipAxis(axis);
+        return axis == FLIP_HORIZONTAL ? flipHorizontal(raster) : flipVertical(raster);
+    }
+
+    /**
+     * Mirrors the raster in an axis without allocating a second raster. Rows are swapped, or
+     * reversed within themselves, in parallel bands.
+     * @param raster - the raster to flip, which is modified.
+     * @param axis - the axis to mirror in, either FLIP_HORIZONTAL or FLIP_VERTICAL.
+     */
+    public static void flipInPlace (Raster raster, int axis)
+    {
+        checkFlipAxis(axis);
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+        final int[] pixels = raster.getPixels();
+        if (axis == FLIP_HORIZONTAL)
+        {
+            RasterThreads.forEachRange(height, ROWS_PER_BAND, new RasterThreads.RangeTask()
+            {
+                /**
+                 * Reverses each of the given rows within itself.
+                 * @param start - the first row.
+                 * @param end - the row after the last.
+                 */
+                @Override
+                public void run (int start, int end)
+                {
+                    for (int y = start; y < end; y++)
+                        reverse(pixels, y * width, width);
+                }
+            });
+        } else
+        {
+            // only the top half is iterated over, as each row is swapped with its opposite
+            RasterThreads.forEachRange(height / 2, ROWS_PER_BAND, new RasterThreads.RangeTask()
+            {
+                /**
+                 * Swaps each of the given rows with its opposite row.
+                 * @param start - the first row.
+                 * @param end - the row after the last.
+                 */
+                @Override
+                public void run (int start, int end)
+                {
+                    int[] row = new int[width];
+                    for (int y = start; y < end; y++)
+                    {
+                        int top = y * width;
+                        int bottom = (height - 1 - y) * width;
+                        System.arraycopy(pixels, top, row, 0, width);
+                        System.arraycopy(pixels, bottom, pixels, top, width);
+                        System.arraycopy(row, 0, pixels, bottom, width);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Reverses part of a pixel buffer in place.
+     * @param pixels - the pixel buffer.
+     * @param offset - the first pixel to reverse.
+     * @param length - the number of pixels to reverse.
+     */
+    private static void reverse (int[] pixels, int offset, int length)
+    {
+        for (int i = offset, j = offset + length - 1; i < j; i++, j--)
+        {
+            int pixel = pixels[i];
+            pixels[i] = pixels[j];
+            pixels[j] = pixel;
+        }
+    }
+
+    /**
+     * Fails if an axis is not one of the flip axes.
+     * @param axis - the axis to check.
+     */
+    private static void checkFlipAxis (int axis)
+    {
+        if (axis != FLIP_HORIZONTAL && axis != FLIP_VERTICAL)
+            throw new IllegalArgumentException("Unknown flip axis " + axis);
+    }
+
+    /**
+     * Returns a rectangular area of the raster.
+     * @param raster - the input raster.
+     * @param left - the left of the area.
+     * @param top - the top of the area.
+     * @param width - the width of the area.
+     * @param height - the height of the area.
+     * @return Raster - the cropped raster.
+     */
+    public static Raster crop (Raster raster, int left, int top, int width, int height)
+    {
+        if (left < 0 || top < 0 || left + width > raster.getWidth() || top + height > raster.getHeight())
+            throw new IllegalArgumentException("Crop area is outside of the raster");
+        int[] src = raster.getPixels();
+        int[] dst = new int[width * height];
+        for (int y = 0; y < height; y++)
+            System.arraycopy(src, (top + y) * raster.getWidth() + left, dst, y * width, width);
+        return new Raster(dst, width, height);
+    }
+
+    /**
+     * Returns the raster scaled to a new size by sampling the nearest pixel.
+     * @param raster - the input raster.
+     * @param width - the width to scale to.
+     * @param height - the height to scale to.
+     * @return Raster - the scaled raster.
+     */
+    public static Raster scaleNearest (Raster raster, int width, int height)
+    {
+        int srcWidth = raster.getWidth();
+        int srcHeight = raster.getHeight();
+        int[] src = raster.getPixels();
+        int[] dst = new int[width * height];
+        // the column lookup is the same for every row, so calculate it once
+        int[] columns = new int[width];
+        for (int x = 0; x < width; x++)
+            columns[x] = Math.min(srcWidth - 1, (int) ((x + 0.5) * srcWidth / width));
+
+        for (int y = 0; y < height; y++)
+        {
+            int srcRow = Math.min(srcHeight - 1, (int) ((y + 0.5) * srcHeight / height)) * srcWidth;
+            int row = y * width;
+            for (int x = 0; x < width; x++)
+                dst[row + x] = src[srcRow + columns[x]];
+        }
+        return new Raster(dst, width, height);
+    }
+
+    /**
+     * Returns the raster scaled to a new size by interpolating between the four nearest pixels.
+     * @param raster - the input raster.
+     * @param width - the width to scale to.
+     * @param height - the height to scale to.
+     * @return Raster - the scaled raster.
+     */
+    public static Raster scaleBilinear (Raster raster, int width, int height)
+    {
+        int srcWidth = raster.getWidth();
+        int srcHeight = raster.getHeight();
+        int[] src = raster.getPixels();
+        int[] dst = new int[width * height];
+        // the column lookups and weights are the same for every row, so calculate them once
+        int[] left = new int[width];
+        int[] right = new int[width];
+        int[] weights = new int[width];
+        for (int x = 0; x < width; x++)
+        {
+            double position = Math.max(0, (x + 0.5) * srcWidth / width - 0.5);
+            left[x] = Math.min(srcWidth - 1, (int) position);
+            right[x] = Math.min(srcWidth - 1, left[x] + 1);
+            weights[x] = (int) ((position - (int) position) * 256);
+        }
+
+        for (int y = 0; y < height; y++)
+        {
+            double position = Math.max(0, (y + 0.5) * srcHeight / height - 0.5);
+            int top = Math.min(srcHeight - 1, (int) position) * srcWidth;
+            int bottom = Math.min(srcHeight - 1, (int) position + 1) * srcWidth;
+            int weight = (int) ((position - (int) position) * 256);
+            int row = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                int upper = lerp(src[top + left[x]], src[top + right[x]], weights[x]);
+                int lower = lerp(src[bottom + left[x]], src[bottom + right[x]], weights[x]);
+                dst[row + x] = lerp(upper, lower, weight);
+            }
+        }
+        return new Raster(dst, width, height);
+    }
+
+    /**
+     * Interpolates between two ARGB pixels, working on two channels at a time.
+     * @param a - the first pixel.
+     * @param b - the second pixel.
+     * @param weight - the weight of the second pixel, from 0 to 256.
+     * @return int - the interpolated pixel.
+     */
+    static int lerp (int a, int b, int weight)
+    {
+        int inverse = 256 - weight;
+        // each channel is at most 255 * 256, so it never spills into the channel above
+        int rb = (((a & RB_MASK) * inverse + (b & RB_MASK) * weight) >>> 8) & RB_MASK;
+        int ag = ((((a >>> 8) & RB_MASK) * inverse + ((b >>> 8) & RB_MASK) * weight) >>> 8) & RB_MASK;
+        return (ag << 8) | rb;
+    }
+
+    /**
+     * Returns the area of the raster within the bounds of a polygon, with the pixels outside of the
+     * polygon made transparent. A pixel is inside if its centre is inside under the even-odd rule.
+     * @param raster - the input raster.
+     * @param points - the polygon as x, y pairs in raster coordinates.
+     * @param pointCount - the number of points in the polygon.
+     * @return Raster - the masked raster, or null if the polygon does not cover any pixels.
+     */
+    public static Raster maskPolygon (Raster raster, float[] points, int pointCount)
+    {
+        if (pointCount < 3)
+            return null;
+        // find the bounds of the polygon within the raster
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < pointCount; i++)
+        {
+            minX = Math.min(minX, points[i * 2]);
+            maxX = Math.max(maxX, points[i * 2]);
+            minY = Math.min(minY, points[i * 2 + 1]);
+            maxY = Math.max(maxY, points[i * 2 + 1]);
+        }
+        int left = Math.max(0, (int) Math.floor(minX));
+        int top = Math.max(0, (int) Math.floor(minY));
+        int right = Math.min(raster.getWidth(), (int) Math.ceil(maxX));
+        int bottom = Math.min(raster.getHeight(), (int) Math.ceil(maxY));
+        if (right <= left || bottom <= top)
+            return null;
+
+        int width = right - left;
+        int[] src = raster.getPixels();
+        int[] dst = new int[width * (bottom - top)];
+        float[] crossings = new float[pointCount];
+        for (int y = top; y < bottom; y++)
+        {
+            // find where the polygon edges cross the centre of the row
+            float centre = y + 0.5f;
+            int count = 0;
+            for (int i = 0, j = pointCount - 1; i < pointCount; j = i++)
+            {
+                float y0 = points[j * 2 + 1];
+                float y1 = points[i * 2 + 1];
+                if ((y0 <= centre) != (y1 <= centre))
+                {
+                    float x0 = points[j * 2];
+                    float x1 = points[i * 2];
+                    crossings[count++] = x0 + (centre - y0) * (x1 - x0) / (y1 - y0);
+                }
+            }
+            Arrays.sort(crossings, 0, count);
+            // copy the spans between each pair of crossings
+            int srcRow = y * raster.getWidth();
+            int row = (y - top) * width;
+            for (int i = 0; i + 1 < count; i += 2)
+            {
+                int start = Math.max(left, (int) Math.ceil(crossings[i] - 0.5f));
+                int end = Math.min(right, (int) Math.ceil(crossings[i + 1] - 0.5f));
+                if (end > start)
+                    System.arraycopy(src, srcRow + start, dst, row + start - left, end - start);
+            }
+        }
+        return new Raster(dst, width, bottom - top);
+    }
+}
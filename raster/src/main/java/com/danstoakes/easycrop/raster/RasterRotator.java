@@ -0,0 +1,137 @@
+package com.danstoakes.easycrop.raster;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Class which rotates rasters by exact quarter turns. The pixels are moved rather than resampled, so
+ * the result is bit-exact. Quarter turns are worked through in square tiles small enough for the
+ * source and destination of a tile to stay in cache, and rows of tiles are shared across the cores.
+ */
+public class RasterRotator
+{
+    static final int TILE_SIZE = 64;
+    private static final int ROWS_PER_BAND = 256;
+
+    /**
+     * Returns the raster rotated clockwise by a multiple of 90 degrees, using the shared pool.
+     * @param raster - the input raster.
+     * @param degrees - the clockwise rotation, which must be a multiple of 90 (and may be negative).
+     * @return Raster - the rotated raster, which is a copy even when the rotation is 0.
+     */
+    public static Raster rotate (Raster raster, int degrees)
+    {
+        return rotate(raster, degrees, RasterThreads.getPool());
+    }
+
+    /**
+     * Returns the raster rotated clockwise by a multiple of 90 degrees.
+     * @param raster - the input raster.
+     * @param degrees - the clockwise rotation, which must be a multiple of 90 (and may be negative).
+     * @param pool - the pool to share the work across.
+     * @return Raster - the rotated raster, which is a copy even when the rotation is 0.
+     */
+    public static Raster rotate (Raster raster, int degrees, ForkJoinPool pool)
+    {
+        if (degrees % 90 != 0)
+            throw new IllegalArgumentException("Only quarter turns are supported, not " + degrees);
+        int quarterTurns = ((degrees / 90) % 4 + 4) % 4;
+        switch (quarterTurns)
+        {
+            case 1:
+            case 3:
+                return rotateQuarter(raster, quarterTurns == 1, pool);
+            case 2:
+                return rotateHalf(raster, pool);
+            default:
+                return new Raster(raster.getPixels().clone(), raster.getWidth(), raster.getHeight());
+        }
+    }
+
+    /**
+     * Rotates the raster a quarter turn, one row of destination tiles per task.
+     * @param raster - the input raster.
+     * @param clockwise - whether to rotate clockwise (90) or anticlockwise (270).
+     * @param pool - the pool to share the work across.
+     * @return Raster - the rotated raster.
+     */
+    private static Raster rotateQuarter (Raster raster, final boolean clockwise, ForkJoinPool pool)
+    {
+        final int srcWidth = raster.getWidth();
+        final int srcHeight = raster.getHeight();
+        final int[] src = raster.getPixels();
+        // the destination swaps the width and height
+        final int width = srcHeight;
+        final int height = srcWidth;
+        final int[] dst = new int[width * height];
+        int tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        RasterThreads.forEachRange(pool, tileRows, Math.max(1, ROWS_PER_BAND / TILE_SIZE), new RasterThreads.RangeTask()
+        {
+            /**
+             * Rotates each tile along the given rows of destination tiles.
+             * @param start - the first row of tiles.
+             * @param end - the row of tiles after the last.
+             */
+            @Override
+            public void run (int start, int end)
+            {
+                for (int tileY = start * TILE_SIZE; tileY < Math.min(height, end * TILE_SIZE); tileY += TILE_SIZE)
+                {
+                    int tileBottom = Math.min(height, tileY + TILE_SIZE);
+                    for (int tileX = 0; tileX < width; tileX += TILE_SIZE)
+                    {
+                        int tileRight = Math.min(width, tileX + TILE_SIZE);
+                        for (int y = tileY; y < tileBottom; y++)
+                        {
+                            int index = y * width;
+                            if (clockwise)
+                            {
+                                // the destination row y is the source column y, read from the bottom up
+                                for (int x = tileX; x < tileRight; x++)
+                                    dst[index + x] = src[(srcHeight - 1 - x) * srcWidth + y];
+                            } else
+                            {
+                                // the destination row y is the source column (width - 1 - y), read from the top down
+                                int column = srcWidth - 1 - y;
+                                for (int x = tileX; x < tileRight; x++)
+                                    dst[index + x] = src[x * srcWidth + column];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return new Raster(dst, width, height);
+    }
+
+    /**
+     * Rotates the raster a half turn, one band of rows per task.
+     * @param raster - the input raster.
+     * @param pool - the pool to share the work across.
+     * @return Raster - the rotated raster.
+     */
+    private static Raster rotateHalf (Raster raster, ForkJoinPool pool)
+    {
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+        final int[] src = raster.getPixels();
+        final int[] dst = new int[width * height];
+        final int last = width * height - 1;
+
+        RasterThreads.forEachRange(pool, height, ROWS_PER_BAND, new RasterThreads.RangeTask()
+        {
+            /**
+             * Reverses the pixels of the given rows into their opposite rows.
+             * @param start - the first row.
+             * @param end - the row after the last.
+             */
+            @Override
+            public void run (int start, int end)
+            {
+                for (int i = start * width; i < end * width; i++)
+                    dst[i] = src[last - i];
+            }
+        });
+        return new Raster(dst, width, height);
+    }
+}
@@ -0,0 +1,383 @@
+package com.danstoakes.easycrop.raster;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Class which resizes rasters with a choice of reconstruction filter. Large reductions are done in
+ * two steps: a fast integer pre-reduction which averages whole blocks of pixels, followed by a
+ * single filtered pass over what remains. Both steps are split into stripes of rows across the cores.
+ */
+public class RasterScaler
+{
+    // the integer pre-reduction followed by a bilinear pass, which is the fastest
+    public static final int FILTER_BOX = 0;
+    // each output pixel averages exactly the source area it covers
+    public static final int FILTER_AREA = 1;
+    // a windowed sinc over three lobes, which is the sharpest
+    public static final int FILTER_LANCZOS = 2;
+
+    private static final int LANCZOS_RADIUS = 3;
+    // the filtered pass is left at least this much reduction to work with
+    private static final int FILTER_MARGIN = 2;
+    // the most pixels a block can average before its channel sums overflow 16 bits
+    private static final int MAX_BLOCK_PIXELS = 256;
+    private static final int RB_MASK = 0x00FF00FF;
+    private static final int ROWS_PER_STRIPE = 64;
+    private static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    private static final int WEIGHT_HALF = WEIGHT_ONE >> 1;
+
+    /**
+     * Returns the raster scaled to a new size, using the shared pool.
+     * @param raster - the input raster.
+     * @param width - the width to scale to.
+     * @param height - the height to scale to.
+     * @param filter - the filter to use, either FILTER_BOX, FILTER_AREA or FILTER_LANCZOS.
+     * @return Raster - the scaled raster.
+     */
+    public static Raster scale (Raster raster, int width, int height, int filter)
+    {
+        return scale(raster, width, height, filter, RasterThreads.getPool());
+    }
+
+    /**
+     * Returns the raster scaled to a new size.
+     * @param raster - the input raster.
+     * @param width - the width to scale to.
+     * @param height - the height to scale to.
+     * @param filter - the filter to use, either FILTER_BOX, FILTER_AREA or FILTER_LANCZOS.
+     * @param pool - the pool to share the work across.
+     * @return Raster - the scaled raster.
+     */
+    public static Raster scale (Raster raster, int width, int height, int filter, ForkJoinPool pool)
+    {
+        if (filter != FILTER_BOX && filter != FILTER_AREA && filter != FILTER_LANCZOS)
+            throw new IllegalArgumentException("Unknown filter " + filter);
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+
+        // the box filter pre-reduces as far as whole blocks allow, the others leave some reduction
+        // for the filtered pass so that it still sees every source pixel it would have seen
+        int margin = filter == FILTER_BOX ? 1 : FILTER_MARGIN;
+        int blockWidth = Math.max(1, raster.getWidth() / (width * margin));
+        int blockHeight = Math.max(1, raster.getHeight() / (height * margin));
+        // any reduction beyond the largest block is left to the filtered pass
+        while (blockWidth * blockHeight > MAX_BLOCK_PIXELS)
+        {
+            if (blockWidth > blockHeight)
+                blockWidth--;
+            else
+                blockHeight--;
+        }
+        if (blockWidth > 1 || blockHeight > 1)
+            raster = reduce(raster, blockWidth, blockHeight, pool);
+        if (raster.getWidth() == width && raster.getHeight() == height)
+            return raster;
+
+        // the filtered pass is separable, so it is run across the rows and then down the columns
+        Contributions columns = new Contributions(raster.getWidth(), width, filter);
+        Contributions rows = new Contributions(raster.getHeight(), height, filter);
+        return resampleVertical(resampleHorizontal(raster, columns, pool), rows, pool);
+    }
+
+    /**
+     * Shrinks the raster by whole factors, averaging each block of pixels into one. Any pixels left
+     * over at the right or bottom edge are dropped. A block holds at most MAX_BLOCK_PIXELS pixels.
+     * @param raster - the input raster.
+     * @param blockWidth - the horizontal factor.
+     * @param blockHeight - the vertical factor.
+     * @param pool - the pool to share the work across.
+     * @return Raster - the reduced raster.
+     */
+    static Raster reduce (Raster raster, final int blockWidth, final int blockHeight, ForkJoinPool pool)
+    {
+        final int srcWidth = raster.getWidth();
+        final int[] src = raster.getPixels();
+        final int width = srcWidth / blockWidth;
+        final int height = raster.getHeight() / blockHeight;
+        final int[] dst = new int[width * height];
+        final int count = blockWidth * blockHeight;
+
+        RasterThreads.forEachRange(pool, height, ROWS_PER_STRIPE, new RasterThreads.RangeTask()
+        {
+            /**
+             * Averages the blocks along the given output rows.
+             * @param start - the first row.
+             * @param end - the row after the last.
+             */
+            @Override
+            public void run (int start, int end)
+            {
+                int half = count >> 1;
+                for (int y = start; y < end; y++)
+                {
+                    int top = y * blockHeight * srcWidth;
+                    int bottom = top + blockHeight * srcWidth;
+                    int index = y * width;
+                    for (int x = 0; x < width; x++)
+                    {
+                        // two channels are summed at once, which the block size limit keeps apart
+                        int rb = 0, ag = 0;
+                        for (int row = top + x * blockWidth; row < bottom; row += srcWidth)
+                        {
+                            for (int i = row; i < row + blockWidth; i++)
+                            {
+                                int pixel = src[i];
+                                rb += pixel & RB_MASK;
+                                ag += (pixel >>> 8) & RB_MASK;
+                            }
+                        }
+                        // round to the nearest value rather than down
+                        dst[index + x] = ((ag >>> 16) + half) / count << 24 | ((rb >>> 16) + half) / count << 16
+                                | ((ag & 0xFFFF) + half) / count << 8 | ((rb & 0xFFFF) + half) / count;
+                    }
+                }
+            }
+        });
+        return new Raster(dst, width, height);
+    }
+
+    /**
+     * Resamples each row of the raster to a new width.
+     * @param raster - the input raster.
+     * @param columns - the weights of the source columns for each output column.
+     * @param pool - the pool to share the work across.
+     * @return Raster - the raster at the new width and the original height.
+     */
+    private static Raster resampleHorizontal (Raster raster, final Contributions columns, ForkJoinPool pool)
+    {
+        final int srcWidth = raster.getWidth();
+        final int[] src = raster.getPixels();
+        final int width = columns.size;
+        final int[] dst = new int[width * raster.getHeight()];
+
+        RasterThreads.forEachRange(pool, raster.getHeight(), ROWS_PER_STRIPE, new RasterThreads.RangeTask()
+        {
+            /**
+             * Resamples the given rows.
+             * @param start - the first row.
+             * @param end - the row after the last.
+             */
+            @Override
+            public void run (int start, int end)
+            {
+                for (int y = start; y < end; y++)
+                {
+                    int srcRow = y * srcWidth;
+                    int row = y * width;
+                    for (int x = 0; x < width; x++)
+                    {
+                        int a = 0, r = 0, g = 0, b = 0;
+                        int index = srcRow + columns.starts[x];
+                        int weightIndex = x * columns.stride;
+                        for (int i = 0; i < columns.counts[x]; i++)
+                        {
+                            int pixel = src[index + i];
+                            int weight = columns.weights[weightIndex + i];
+                            a += (pixel >>> 24) * weight;
+                            r += ((pixel >> 16) & 0xFF) * weight;
+                            g += ((pixel >> 8) & 0xFF) * weight;
+                            b += (pixel & 0xFF) * weight;
+                        }
+                        dst[row + x] = pack(a, r, g, b);
+                    }
+                }
+            }
+        });
+        return new Raster(dst, width, raster.getHeight());
+    }
+
+    /**
+     * Resamples each column of the raster to a new height. Each output row is accumulated a whole
+     * source row at a time, so the source is read in order.
+     * @param raster - the input raster.
+     * @param rows - the weights of the source rows for each output row.
+     * @param pool - the pool to share the work across.
+     * @return Raster - the raster at the original width and the new height.
+     */
+    private static Raster resampleVertical (Raster raster, final Contributions rows, ForkJoinPool pool)
+    {
+        final int width = raster.getWidth();
+        final int[] src = raster.getPixels();
+        final int height = rows.size;
+        final int[] dst = new int[width * height];
+
+        RasterThreads.forEachRange(pool, height, ROWS_PER_STRIPE, new RasterThreads.RangeTask()
+        {
+            /**
+             * Resamples the given output rows.
+             * @param start - the first row.
+             * @param end - the row after the last.
+             */
+            @Override
+            public void run (int start, int end)
+            {
+                int[] a = new int[width];
+                int[] r = new int[width];
+                int[] g = new int[width];
+                int[] b = new int[width];
+                for (int y = start; y < end; y++)
+                {
+                    int weightIndex = y * rows.stride;
+                    for (int i = 0; i < rows.counts[y]; i++)
+                    {
+                        int srcRow = (rows.starts[y] + i) * width;
+                        int weight = rows.weights[weightIndex + i];
+                        for (int x = 0; x < width; x++)
+                        {
+                            int pixel = src[srcRow + x];
+                            // the first source row overwrites rather than adds, to reset the sums
+                            if (i == 0)
+                            {
+                                a[x] = (pixel >>> 24) * weight;
+                                r[x] = ((pixel >> 16) & 0xFF) * weight;
+                                g[x] = ((pixel >> 8) & 0xFF) * weight;
+                                b[x] = (pixel & 0xFF) * weight;
+                            } else
+                            {
+                                a[x] += (pixel >>> 24) * weight;
+                                r[x] += ((pixel >> 16) & 0xFF) * weight;
+                                g[x] += ((pixel >> 8) & 0xFF) * weight;
+                                b[x] += (pixel & 0xFF) * weight;
+                            }
+                        }
+                    }
+                    int row = y * width;
+                    for (int x = 0; x < width; x++)
+                        dst[row + x] = pack(a[x], r[x], g[x], b[x]);
+                }
+            }
+        });
+        return new Raster(dst, width, height);
+    }
+
+    /**
+     * Packs weighted channel sums into an ARGB pixel, clamping the overshoot of negative lobes.
+     * @param a - the weighted alpha sum.
+     * @param r - the weighted red sum.
+     * @param g - the weighted green sum.
+     * @param b - the weighted blue sum.
+     * @return int - the ARGB pixel.
+     */
+    private static int pack (int a, int r, int g, int b)
+    {
+        return clamp(a) << 24 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    /**
+     * Converts a weighted channel sum back to a channel value.
+     * @param sum - the weighted sum.
+     * @return int - the channel value, from 0 to 255.
+     */
+    private static int clamp (int sum)
+    {
+        int value = (sum + WEIGHT_HALF) >> WEIGHT_BITS;
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /**
+     * Returns the weight of the Lanczos kernel at a distance from its centre.
+     * @param x - the distance, in units of the kernel.
+     * @return double - the weight.
+     */
+    private static double lanczos (double x)
+    {
+        if (x == 0)
+            return 1;
+        if (x <= -LANCZOS_RADIUS || x >= LANCZOS_RADIUS)
+            return 0;
+        double px = Math.PI * x;
+        return LANCZOS_RADIUS * Math.sin(px) * Math.sin(px / LANCZOS_RADIUS) / (px * px);
+    }
+
+    /**
+     * Table of which source pixels contribute to each output pixel along one axis, and by how much.
+     * The weights of each output pixel are fixed point and add up to exactly one.
+     */
+    private static class Contributions
+    {
+        final int size;
+        final int stride;
+        final int[] starts;
+        final int[] counts;
+        final int[] weights;
+
+        /**
+         * Constructor for the Contributions class.
+         * @param srcSize - the number of source pixels along the axis.
+         * @param size - the number of output pixels along the axis.
+         * @param filter - the filter to use.
+         */
+        Contributions (int srcSize, int size, int filter)
+        {
+            double scale = (double) srcSize / size;
+            // when reducing, the kernel is stretched to cover every source pixel (except for the
+            // box filter's bilinear pass, which only ever reduces by less than two)
+            double kernelScale = filter == FILTER_BOX ? 1 : Math.max(1, scale);
+            double support = filter == FILTER_LANCZOS ? LANCZOS_RADIUS * kernelScale
+                    : filter == FILTER_AREA ? kernelScale / 2 + 0.5 : 1;
+
+            this.size = size;
+            this.stride = (int) Math.ceil(support * 2) + 2;
+            this.starts = new int[size];
+            this.counts = new int[size];
+            this.weights = new int[size * stride];
+
+            double[] values = new double[stride];
+            for (int i = 0; i < size; i++)
+            {
+                // the centre of the output pixel in source pixel coordinates
+                double centre = (i + 0.5) * scale;
+                int first = Math.max(0, (int) Math.floor(centre - support));
+                int last = Math.min(srcSize - 1, (int) Math.ceil(centre + support));
+                int count = Math.min(stride, last - first + 1);
+
+                double total = 0;
+                for (int j = 0; j < count; j++)
+                {
+                    double distance = (first + j + 0.5 - centre) / kernelScale;
+                    values[j] = weight(filter, distance, kernelScale);
+                    total += values[j];
+                }
+                // normalise, since taps outside the image are dropped, and put any rounding error
+                // onto the largest weight
+                int sum = 0, largest = 0;
+                for (int j = 0; j < count; j++)
+                {
+                    int weight = (int) Math.round(values[j] / total * WEIGHT_ONE);
+                    weights[i * stride + j] = weight;
+                    sum += weight;
+                    if (weight > weights[i * stride + largest])
+                        largest = j;
+                }
+                weights[i * stride + largest] += WEIGHT_ONE - sum;
+                starts[i] = first;
+                counts[i] = count;
+            }
+        }
+
+        /**
+         * Returns the weight of a source pixel.
+         * @param filter - the filter to use.
+         * @param distance - the distance of the source pixel centre from the output pixel centre, in
+         *                 units of the kernel.
+         * @param kernelScale - the number of source pixels in one unit of the kernel.
+         * @return double - the weight of the source pixel.
+         */
+        private static double weight (int filter, double distance, double kernelScale)
+        {
+            switch (filter)
+            {
+                case FILTER_LANCZOS:
+                    return lanczos(distance);
+                case FILTER_AREA:
+                    // the overlap between the source pixel and the output pixel's footprint
+                    double halfPixel = 0.5 / kernelScale;
+                    double overlap = Math.min(distance + halfPixel, 0.5) - Math.max(distance - halfPixel, -0.5);
+                    return Math.max(0, overlap);
+                default:
+                    return Math.max(0, 1 - Math.abs(distance));
+            }
+        }
+    }
+}
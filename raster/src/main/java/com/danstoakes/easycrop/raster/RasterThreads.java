@@ -0,0 +1,108 @@
+package com.danstoakes.easycrop.raster;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Helper class which splits raster work into bands of rows (or tiles) and runs them on a shared
+ * fork-join pool, so that large images are processed on every core.
+ */
+public class RasterThreads
+{
+    private static ForkJoinPool pool;
+
+    /**
+     * Interface for work which is performed on a range of rows or tiles.
+     */
+    public interface RangeTask
+    {
+        void run (int start, int end);
+    }
+
+    /**
+     * Returns the shared pool, creating it with one thread per core when it is first needed.
+     * @return ForkJoinPool - the shared pool.
+     */
+    public static synchronized ForkJoinPool getPool ()
+    {
+        if (pool == null)
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return pool;
+    }
+
+    /**
+     * Runs a task over the range [0, count) on the shared pool, splitting it into parts of at most
+     * grain items. Small ranges are run directly on the calling thread.
+     * @param count - the number of items in the range.
+     * @param grain - the largest number of items a single part covers.
+     * @param task - the task to run on each part.
+     */
+    public static void forEachRange (int count, int grain, RangeTask task)
+    {
+        forEachRange(getPool(), count, grain, task);
+    }
+
+    /**
+     * Runs a task over the range [0, count) on a pool, splitting it into parts of at most grain items.
+     * Small ranges are run directly on the calling thread.
+     * @param pool - the pool to run the parts on.
+     * @param count - the number of items in the range.
+     * @param grain - the largest number of items a single part covers.
+     * @param task - the task to run on each part.
+     */
+    public static void forEachRange (ForkJoinPool pool, int count, int grain, RangeTask task)
+    {
+        grain = Math.max(1, grain);
+        if (count <= grain || pool.getParallelism() == 1)
+        {
+            task.run(0, count);
+        } else
+        {
+            pool.invoke(new RangeAction(task, 0, count, grain));
+        }
+    }
+
+    /**
+     * Fork-join action which halves its range until each part is no larger than the grain.
+     */
+    private static class RangeAction extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeTask task;
+        private final int start;
+        private final int end;
+        private final int grain;
+
+        /**
+         * Constructor for the RangeAction class.
+         * @param task - the task to run on each part.
+         * @param start - the first item of the range.
+         * @param end - the item after the last item of the range.
+         * @param grain - the largest number of items a single part covers.
+         */
+        RangeAction (RangeTask task, int start, int end, int grain)
+        {
+            this.task = task;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        /**
+         * Runs the range directly if it is small enough, otherwise splits it in two.
+         */
+        @Override
+        protected void compute ()
+        {
+            if (end - start <= grain)
+            {
+                task.run(start, end);
+            } else
+            {
+                int middle = (start + end) >>> 1;
+                invokeAll(new RangeAction(task, start, middle, grain), new RangeAction(task, middle, end, grain));
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.danstoakes.easycrop.raster;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PolygonRasteriser and CoverageMask, which run on the development machine (host).
+ */
+public class PolygonRasteriserTest {
+
+    private static final float[] PENTAGRAM = pentagram(100, 100, 90);
+
+    @Test
+    public void rasterise_fillsPixelCentresWithoutAntiAliasing() {
+        float[] square = {2.2f, 1.6f, 6.4f, 1.6f, 6.4f, 4.4f, 2.2f, 4.4f};
+        CoverageMask mask = PolygonRasteriser.rasterise(square, 4, PolygonRasteriser.FILL_NON_ZERO, false, 10, 10);
+        assertEquals(2, mask.getLeft());
+        assertEquals(1, mask.getTop());
+        for (int y = 0; y < mask.getHeight(); y++) {
+            for (int x = 0; x < mask.getWidth(); x++) {
+                float centreX = mask.getLeft() + x + 0.5f;
+                float centreY = mask.getTop() + y + 0.5f;
+                boolean inside = centreX > 2.2f && centreX < 6.4f && centreY > 1.6f && centreY < 4.4f;
+                assertEquals(inside ? 255 : 0, mask.getCoverage(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void rasterise_coversEdgePixelsByTheirArea() {
+        float[] square = {0.5f, 0, 3.25f, 0, 3.25f, 4, 0.5f, 4};
+        CoverageMask mask = PolygonRasteriser.rasterise(square, 4, PolygonRasteriser.FILL_NON_ZERO, true, 10, 10);
+        for (int y = 0; y < 4; y++) {
+            assertEquals(128, mask.getCoverage(0, y), 1);
+            assertEquals(255, mask.getCoverage(1, y));
+            assertEquals(255, mask.getCoverage(2, y));
+            assertEquals(64, mask.getCoverage(3, y), 1);
+        }
+    }
+
+    @Test
+    public void rasterise_coverageAddsUpToTheArea() {
+        float[] triangle = {10, 10, 190.5f, 37.25f, 61.75f, 170};
+        CoverageMask mask = PolygonRasteriser.rasterise(triangle, 3, PolygonRasteriser.FILL_EVEN_ODD, true, 200, 200);
+        double total = 0;
+        for (byte value : mask.getCoverage())
+            total += (value & 0xFF) / 255.0;
+        double area = Math.abs((190.5 - 10) * (170 - 10) - (61.75 - 10) * (37.25 - 10)) / 2;
+        assertEquals(area, total, area * 0.005);
+    }
+
+    @Test
+    public void rasterise_appliesTheFillRuleToSelfIntersections() {
+        CoverageMask evenOdd = PolygonRasteriser.rasterise(
+                PENTAGRAM, 5, PolygonRasteriser.FILL_EVEN_ODD, false, 200, 200);
+        CoverageMask nonZero = PolygonRasteriser.rasterise(
+                PENTAGRAM, 5, PolygonRasteriser.FILL_NON_ZERO, false, 200, 200);
+        // the centre of a pentagram is wound around twice
+        assertEquals(0, evenOdd.getCoverage(100 - evenOdd.getLeft(), 100 - evenOdd.getTop()));
+        assertEquals(255, nonZero.getCoverage(100 - nonZero.getLeft(), 100 - nonZero.getTop()));
+        // whereas the points are wound around once
+        assertEquals(255, evenOdd.getCoverage(100 - evenOdd.getLeft(), 20 - evenOdd.getTop()));
+        assertEquals(255, nonZero.getCoverage(100 - nonZero.getLeft(), 20 - nonZero.getTop()));
+    }
+
+    @Test
+    public void rasterise_isTheSameOnOneThreadAsOnMany() {
+        float[] star = pentagram(500, 400, 390);
+        ForkJoinPool serial = new ForkJoinPool(1);
+        ForkJoinPool parallel = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(
+                    PolygonRasteriser.rasterise(star, 5, PolygonRasteriser.FILL_EVEN_ODD, true, 1000, 800, serial)
+                            .getCoverage(),
+                    PolygonRasteriser.rasterise(star, 5, PolygonRasteriser.FILL_EVEN_ODD, true, 1000, 800, parallel)
+                            .getCoverage());
+        } finally {
+            serial.shutdown();
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    public void rasterise_clipsToTheImage() {
+        float[] square = {-50, -50, 5, -50, 5, 5, -50, 5};
+        CoverageMask mask = PolygonRasteriser.rasterise(square, 4, PolygonRasteriser.FILL_NON_ZERO, true, 10, 10);
+        assertEquals(0, mask.getLeft());
+        assertEquals(5, mask.getWidth());
+        assertEquals(5, mask.getHeight());
+        // a polygon wholly outside of the image covers nothing
+        assertNull(PolygonRasteriser.rasterise(
+                new float[]{20, 20, 30, 20, 30, 30}, 3, PolygonRasteriser.FILL_NON_ZERO, true, 10, 10));
+    }
+
+    @Test
+    public void applyToRow_scalesAlphaByCoverage() {
+        float[] square = {0.5f, 0, 3, 0, 3, 1, 0.5f, 1};
+        CoverageMask mask = PolygonRasteriser.rasterise(square, 4, PolygonRasteriser.FILL_NON_ZERO, true, 4, 1);
+        int[] row = {0xFF123456, 0xFF123456, 0x80123456, 0xFF123456};
+        mask.applyToRow(row, 0, 0);
+        assertEquals(0x80, row[0] >>> 24);
+        assertEquals(0x123456, row[0] & 0xFFFFFF);
+        assertEquals(0xFF123456, row[1]);
+        assertEquals(0x80123456, row[2]);
+        assertEquals(3, mask.getWidth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rasterise_rejectsUnknownFillRules() {
+        PolygonRasteriser.rasterise(PENTAGRAM, 5, 2, false, 200, 200);
+    }
+
+    private static float[] pentagram(float centreX, float centreY, float radius) {
+        float[] vertices = new float[10];
+        for (int i = 0; i < 5; i++) {
+            // visit every second point of a pentagon, starting at the top
+            double angle = -Math.PI / 2 + i * 4 * Math.PI / 5;
+            vertices[i * 2] = (float) (centreX + radius * Math.cos(angle));
+            vertices[i * 2 + 1] = (float) (centreY + radius * Math.sin(angle));
+        }
+        return vertices;
+    }
+}
@@ -0,0 +1,104 @@
+package com.danstoakes.easycrop.raster;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PolylineSimplifier, which run on the development machine (host).
+ */
+public class PolylineSimplifierTest {
+
+    @Test
+    public void add_collapsesStraightLinesToTheirEnds() {
+        PolylineSimplifier simplifier = new PolylineSimplifier(1, 64);
+        for (int i = 0; i <= 50; i++)
+            simplifier.add(i * 3, i * 2);
+        assertArrayEquals(new float[]{0, 0, 150, 100}, simplifier.toArray(), 0);
+    }
+
+    @Test
+    public void add_keepsCorners() {
+        PolylineSimplifier simplifier = new PolylineSimplifier(1, 64);
+        for (int i = 0; i <= 20; i++)
+            simplifier.add(i * 5, 0);
+        for (int i = 1; i <= 20; i++)
+            simplifier.add(100, i * 5);
+        assertArrayEquals(new float[]{0, 0, 100, 0, 100, 100}, simplifier.toArray(), 0);
+    }
+
+    @Test
+    public void add_keepsEveryPointWithinTheTolerance() {
+        // a circle traced with a little jitter, which needs fewer vertices than the limit
+        PolylineSimplifier simplifier = new PolylineSimplifier(1.5f, 1024);
+        Random random = new Random(42);
+        float[] points = new float[2000];
+        for (int i = 0; i < points.length; i += 2) {
+            double angle = Math.PI * i / points.length;
+            points[i] = (float) (500 + 400 * Math.cos(angle) + random.nextFloat() - 0.5f);
+            points[i + 1] = (float) (500 + 400 * Math.sin(angle) + random.nextFloat() - 0.5f);
+            simplifier.add(points[i], points[i + 1]);
+        }
+        assertEquals(0, simplifier.getReductionCount());
+        assertTrue(simplifier.getVertexCount() < 200);
+        float[] vertices = simplifier.toArray();
+        for (int i = 0; i < points.length; i += 2)
+            assertTrue(distanceToPolyline(vertices, points[i], points[i + 1]) <= 1.5f + 1e-3f);
+    }
+
+    @Test
+    public void add_boundsTheVertexCount() {
+        PolylineSimplifier simplifier = new PolylineSimplifier(0.5f, 100);
+        Random random = new Random(7);
+        float x = 0, y = 0;
+        simplifier.add(x, y);
+        for (int i = 0; i < 100000; i++) {
+            x += random.nextFloat() * 20 - 10;
+            y += random.nextFloat() * 20 - 10;
+            simplifier.add(x, y);
+            assertTrue(simplifier.getVertexCount() <= 100);
+        }
+        assertTrue(simplifier.getReductionCount() > 0);
+        // the ends of the stroke are kept
+        float[] vertices = simplifier.toArray();
+        assertEquals(0, vertices[0], 0);
+        assertEquals(0, vertices[1], 0);
+        assertEquals(x, vertices[vertices.length - 2], 0);
+        assertEquals(y, vertices[vertices.length - 1], 0);
+    }
+
+    @Test
+    public void reset_startsANewPolyline() {
+        PolylineSimplifier simplifier = new PolylineSimplifier(0.5f, 8);
+        for (int i = 0; i < 100; i++)
+            simplifier.add(i * 10, (i % 2) * 50);
+        assertTrue(simplifier.getReductionCount() > 0);
+        simplifier.reset();
+        assertEquals(0, simplifier.getVertexCount());
+        assertEquals(0, simplifier.getReductionCount());
+        // nothing of the previous polyline is carried over
+        for (int i = 0; i <= 10; i++)
+            simplifier.add(i, i);
+        assertArrayEquals(new float[]{0, 0, 10, 10}, simplifier.toArray(), 0);
+        assertEquals(0, simplifier.getReductionCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsTooFewVertices() {
+        new PolylineSimplifier(1, 3);
+    }
+
+    private static float distanceToPolyline(float[] vertices, float x, float y) {
+        double nearest = Double.MAX_VALUE;
+        for (int i = 0; i + 3 < vertices.length; i += 2) {
+            double dx = vertices[i + 2] - vertices[i];
+            double dy = vertices[i + 3] - vertices[i + 1];
+            double t = Math.max(0, Math.min(1, ((x - vertices[i]) * dx + (y - vertices[i + 1]) * dy)
+                    / Math.max(dx * dx + dy * dy, 1e-12)));
+            nearest = Math.min(nearest, Math.hypot(vertices[i] + t * dx - x, vertices[i + 1] + t * dy - y));
+        }
+        return (float) nearest;
+    }
+}
@@ -0,0 +1,156 @@
+package com.danstoakes.easycrop.raster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the pixel operations in RasterOps, which run on the development machine (host).
+ */
+public class RasterOpsTest {
+
+    /**
+     * Returns a raster where every pixel is opaque and holds its own index, so moves can be traced.
+     */
+    private static Raster indexed(int width, int height) {
+        Raster raster = new Raster(width, height);
+        for (int i = 0; i < width * height; i++)
+            raster.getPixels()[i] = 0xFF000000 | i;
+        return raster;
+    }
+
+    @Test
+    public void rotate90_movesTopLeftToTopRight() {
+        Raster rotated = RasterOps.rotate90(indexed(3, 2));
+        assertEquals(2, rotated.getWidth());
+        assertEquals(3, rotated.getHeight());
+        // input rows [0 1 2] [3 4 5] become output rows [3 0] [4 1] [5 2]
+        assertArrayEquals(new int[]{3, 0, 4, 1, 5, 2}, indices(rotated));
+    }
+
+    @Test
+    public void rotate270_isRotate90ThreeTimes() {
+        Raster raster = indexed(5, 3);
+        Raster expected = RasterOps.rotate90(RasterOps.rotate90(RasterOps.rotate90(raster)));
+        assertArrayEquals(expected.getPixels(), RasterOps.rotate270(raster).getPixels());
+    }
+
+    @Test
+    public void rotate180_isRotate90Twice() {
+        Raster raster = indexed(4, 7);
+        Raster expected = RasterOps.rotate90(RasterOps.rotate90(raster));
+        assertArrayEquals(expected.getPixels(), RasterOps.rotate180(raster).getPixels());
+    }
+
+    @Test
+    public void flips_mirrorRowsAndColumns() {
+        Raster raster = indexed(3, 2);
+        assertArrayEquals(new int[]{2, 1, 0, 5, 4, 3}, indices(RasterOps.flipHorizontal(raster)));
+        assertArrayEquals(new int[]{3, 4, 5, 0, 1, 2}, indices(RasterOps.flipVertical(raster)));
+    }
+
+    @Test
+    public void flipInPlace_matchesTheCopyingFlips() {
+        // odd sizes leave a middle row/column which stays where it is
+        for (int[] size : new int[][]{{7, 5}, {6, 4}, {1, 9}, {300, 601}}) {
+            Raster raster = indexed(size[0], size[1]);
+            for (int axis : new int[]{RasterOps.FLIP_HORIZONTAL, RasterOps.FLIP_VERTICAL}) {
+                Raster expected = RasterOps.flip(raster, axis);
+                Raster flipped = new Raster(raster.getPixels().clone(), size[0], size[1]);
+                RasterOps.flipInPlace(flipped, axis);
+                assertArrayEquals(expected.getPixels(), flipped.getPixels());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void flip_rejectsUnknownAxes() {
+        RasterOps.flipInPlace(indexed(2, 2), 0);
+    }
+
+    @Test
+    public void crop_copiesTheArea() {
+        Raster cropped = RasterOps.crop(indexed(4, 4), 1, 2, 2, 2);
+        assertArrayEquals(new int[]{9, 10, 13, 14}, indices(cropped));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void crop_rejectsAreasOutsideTheRaster() {
+        RasterOps.crop(indexed(4, 4), 3, 0, 2, 2);
+    }
+
+    @Test
+    public void scaleNearest_halvingPicksEverySecondPixel() {
+        Raster scaled = RasterOps.scaleNearest(indexed(4, 2), 2, 1);
+        assertArrayEquals(new int[]{5, 7}, indices(scaled));
+    }
+
+    @Test
+    public void scaleBilinear_keepsFlatColoursFlat() {
+        Raster raster = new Raster(9, 7);
+        Arrays.fill(raster.getPixels(), 0xFF336699);
+        Raster scaled = RasterOps.scaleBilinear(raster, 4, 3);
+        for (int pixel : scaled.getPixels())
+            assertEquals(0xFF336699, pixel);
+    }
+
+    @Test
+    public void scaleBilinear_blendsBetweenNeighbours() {
+        Raster raster = new Raster(new int[]{0xFF000000, 0xFFFFFFFF}, 2, 1);
+        Raster scaled = RasterOps.scaleBilinear(raster, 4, 1);
+        // the outer pixels clamp to the edge and the inner pixels blend
+        assertEquals(0xFF000000, scaled.getPixel(0, 0));
+        assertEquals(0xFFFFFFFF, scaled.getPixel(3, 0));
+        int inner = scaled.getPixel(1, 0) & 0xFF;
+        assertTrue(inner > 0 && inner < 0xFF);
+    }
+
+    @Test
+    public void lerp_returnsEndpointsAtExtremes() {
+        assertEquals(0x80402010, RasterOps.lerp(0x80402010, 0x10203040, 0));
+        assertEquals(0x7F1F2F3F, RasterOps.lerp(0x80402010, 0x7F1F2F3F, 256));
+    }
+
+    @Test
+    public void maskPolygon_keepsPixelsInsideTheTriangle() {
+        Raster raster = indexed(10, 10);
+        float[] triangle = {0, 0, 10, 0, 0, 10};
+        Raster masked = RasterOps.maskPolygon(raster, triangle, 3);
+        assertEquals(10, masked.getWidth());
+        assertEquals(10, masked.getHeight());
+        // a pixel is kept when its centre lies above the diagonal x + y = 10
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                int expected = x + y + 1 < 10 ? raster.getPixel(x, y) : 0;
+                assertEquals("pixel " + x + "," + y, expected, masked.getPixel(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void maskPolygon_cropsToTheBounds() {
+        float[] square = {2, 3, 6, 3, 6, 5, 2, 5};
+        Raster masked = RasterOps.maskPolygon(indexed(10, 10), square, 4);
+        assertEquals(4, masked.getWidth());
+        assertEquals(2, masked.getHeight());
+        assertArrayEquals(new int[]{32, 33, 34, 35, 42, 43, 44, 45}, indices(masked));
+    }
+
+    @Test
+    public void maskPolygon_returnsNullOutsideTheRaster() {
+        float[] square = {20, 20, 30, 20, 30, 30};
+        assertNull(RasterOps.maskPolygon(indexed(10, 10), square, 3));
+    }
+
+    /**
+     * Returns the pixel indices written by indexed(), ignoring the alpha channel.
+     */
+    private static int[] indices(Raster raster) {
+        int[] pixels = raster.getPixels().clone();
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] &= 0x00FFFFFF;
+        return pixels;
+    }
+}
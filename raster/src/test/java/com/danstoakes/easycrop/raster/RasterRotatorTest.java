@@ -0,0 +1,83 @@
+package com.danstoakes.easycrop.raster;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for RasterRotator, checking the tiled, parallel rotations against a plain per-pixel rotation.
+ */
+public class RasterRotatorTest {
+
+    /**
+     * Returns a raster of random pixels, sized so that its edges fall part way through a tile.
+     */
+    private static Raster random(int width, int height) {
+        Random random = new Random(width * 31 + height);
+        Raster raster = new Raster(width, height);
+        for (int i = 0; i < width * height; i++)
+            raster.getPixels()[i] = random.nextInt();
+        return raster;
+    }
+
+    /**
+     * Rotates a raster clockwise one pixel at a time, as the reference result.
+     */
+    private static Raster reference(Raster raster, int quarterTurns) {
+        Raster result = raster;
+        for (int turn = 0; turn < quarterTurns; turn++) {
+            Raster rotated = new Raster(result.getHeight(), result.getWidth());
+            for (int y = 0; y < result.getHeight(); y++)
+                for (int x = 0; x < result.getWidth(); x++)
+                    rotated.setPixel(result.getHeight() - 1 - y, x, result.getPixel(x, y));
+            result = rotated;
+        }
+        return result;
+    }
+
+    private static void assertRasterEquals(Raster expected, Raster actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getPixels(), actual.getPixels());
+    }
+
+    @Test
+    public void rotate_isBitExactForEveryQuarterTurn() {
+        Raster raster = random(3 * RasterRotator.TILE_SIZE + 5, 5 * RasterRotator.TILE_SIZE - 3);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int turns = 0; turns < 4; turns++)
+            assertRasterEquals(reference(raster, turns), RasterRotator.rotate(raster, turns * 90, pool));
+        pool.shutdown();
+    }
+
+    @Test
+    public void rotate_matchesOnASingleThread() {
+        Raster raster = random(300, 170);
+        ForkJoinPool pool = new ForkJoinPool(1);
+        assertRasterEquals(RasterRotator.rotate(raster, 90), RasterRotator.rotate(raster, 90, pool));
+        pool.shutdown();
+    }
+
+    @Test
+    public void rotate_normalisesNegativeAndFullTurns() {
+        Raster raster = random(40, 25);
+        assertRasterEquals(reference(raster, 3), RasterRotator.rotate(raster, -90));
+        assertRasterEquals(raster, RasterRotator.rotate(raster, 360));
+    }
+
+    @Test
+    public void rotate_leavesTheInputUntouched() {
+        Raster raster = random(70, 90);
+        int[] before = raster.getPixels().clone();
+        RasterRotator.rotate(raster, 90);
+        assertArrayEquals(before, raster.getPixels());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rotate_rejectsPartialTurns() {
+        RasterRotator.rotate(random(4, 4), 45);
+    }
+}
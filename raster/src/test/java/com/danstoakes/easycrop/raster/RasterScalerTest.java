@@ -0,0 +1,78 @@
+package com.danstoakes.easycrop.raster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for RasterScaler, which run on the development machine (host).
+ */
+public class RasterScalerTest {
+
+    private static final int[] FILTERS = {
+            RasterScaler.FILTER_BOX, RasterScaler.FILTER_AREA, RasterScaler.FILTER_LANCZOS};
+
+    @Test
+    public void scale_keepsFlatColoursFlat() {
+        Raster raster = new Raster(301, 207);
+        Arrays.fill(raster.getPixels(), 0xFF336699);
+        for (int filter : FILTERS) {
+            // both a large reduction and an enlargement
+            for (int[] size : new int[][]{{37, 25}, {640, 400}}) {
+                Raster scaled = RasterScaler.scale(raster, size[0], size[1], filter);
+                assertEquals(size[0], scaled.getWidth());
+                assertEquals(size[1], scaled.getHeight());
+                for (int pixel : scaled.getPixels())
+                    assertEquals(0xFF336699, pixel);
+            }
+        }
+    }
+
+    @Test
+    public void scale_averagesFineDetailAway() {
+        // a one pixel checkerboard has nothing which survives an 8x reduction except its average
+        Raster raster = new Raster(800, 800);
+        for (int y = 0; y < 800; y++)
+            for (int x = 0; x < 800; x++)
+                raster.setPixel(x, y, (x + y) % 2 == 0 ? 0xFF000000 : 0xFFFFFFFF);
+        for (int filter : FILTERS) {
+            for (int pixel : RasterScaler.scale(raster, 100, 100, filter).getPixels())
+                assertEquals(0x80, pixel & 0xFF, 2);
+        }
+    }
+
+    @Test
+    public void scaleArea_averagesEachBlockExactly() {
+        Raster raster = new Raster(new int[]{
+                0xFF000000, 0xFF040404, 0xFF101010, 0xFF101010,
+                0xFF080808, 0xFF0C0C0C, 0xFF101010, 0xFF101010}, 4, 2);
+        Raster scaled = RasterScaler.scale(raster, 2, 1, RasterScaler.FILTER_AREA);
+        assertArrayEquals(new int[]{0xFF060606, 0xFF101010}, scaled.getPixels());
+    }
+
+    @Test
+    public void scale_isTheSameOnOneThreadAsOnMany() {
+        Raster raster = new Raster(1000, 700);
+        for (int i = 0; i < raster.getPixels().length; i++)
+            raster.getPixels()[i] = 0xFF000000 | (i * 7919) & 0xFFFFFF;
+        ForkJoinPool serial = new ForkJoinPool(1);
+        ForkJoinPool parallel = new ForkJoinPool(4);
+        try {
+            for (int filter : FILTERS) {
+                assertArrayEquals(RasterScaler.scale(raster, 123, 87, filter, serial).getPixels(),
+                        RasterScaler.scale(raster, 123, 87, filter, parallel).getPixels());
+            }
+        } finally {
+            serial.shutdown();
+            parallel.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scale_rejectsUnknownFilters() {
+        RasterScaler.scale(new Raster(4, 4), 2, 2, 7);
+    }
+}